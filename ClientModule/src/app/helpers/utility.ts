@@ -64,6 +64,9 @@ export default class Utility {
       case TeamProposalStatus.REJECTED: {
         return '#cb4747';
       }
+      case TeamProposalStatus.EXPIRED: {
+        return '#9e9e9e';
+      }
       default: {
         return '#000000';
       }
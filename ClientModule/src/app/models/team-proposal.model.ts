@@ -3,7 +3,8 @@ import {Student} from './student.model';
 export enum TeamProposalStatus {
   PENDING = 'PENDING',
   REJECTED = 'REJECTED',
-  CONFIRMED = 'CONFIRMED'
+  CONFIRMED = 'CONFIRMED',
+  EXPIRED = 'EXPIRED'
 }
 
 export class TeamProposal {
@@ -2,10 +2,12 @@ package it.polito.ai.virtualLabs.controllers;
 
 import it.polito.ai.virtualLabs.dtos.UserDTO;
 import it.polito.ai.virtualLabs.repositories.UserRepository;
+import it.polito.ai.virtualLabs.security.PasswordHashingRejectedException;
 import it.polito.ai.virtualLabs.services.AuthService;
 import it.polito.ai.virtualLabs.services.NotificationService;
 import it.polito.ai.virtualLabs.services.exceptions.team.TokenNotFoundException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.AuthenticationManager;
@@ -20,7 +22,6 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
 import javax.mail.MessagingException;
-import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
@@ -75,6 +76,14 @@ public class AuthController {
         }
     }
 
+    // password hashing is at capacity: the client is asked to retry shortly instead of waiting
+    @ExceptionHandler(PasswordHashingRejectedException.class)
+    public ResponseEntity<String> passwordHashingRejected(PasswordHashingRejectedException ex) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .body(ex.getMessage());
+    }
+
     @PostMapping("/signup")
     @ResponseStatus(HttpStatus.OK)
     public boolean signup(@RequestBody UserDTO data) {
@@ -117,11 +126,11 @@ public class AuthController {
     @ResponseStatus(HttpStatus.OK)
     public Map<String, String> refreshToken(@RequestBody String token) {
         try {
-            if(authService.isRefreshTokenExpired(token))
+            Optional<String> username = authService.getRefreshTokenUsername(token);
+            if(!username.isPresent())
                 throw new ResponseStatusException(HttpStatus.NETWORK_AUTHENTICATION_REQUIRED, "Refresh token is expired");
 
-            String decodedUsername = new String(Base64.getDecoder().decode(token)).split("\\|")[1];
-            return authService.assignToken(decodedUsername, false);
+            return authService.assignToken(username.get(), false);
         } catch(UsernameNotFoundException | TokenNotFoundException | IllegalStateException e) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
         }
@@ -6,6 +6,7 @@ import it.polito.ai.virtualLabs.services.TeamService;
 import it.polito.ai.virtualLabs.services.VmService;
 import it.polito.ai.virtualLabs.services.exceptions.file.ParsingFileException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.core.userdetails.UserDetails;
@@ -17,6 +18,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -117,6 +119,22 @@ public class CourseController {
         return vmModel.map(ModelHelper::enrich).orElse(null);
     }
 
+    @GetMapping("/{courseName}/vms/metrics")
+    public VmMetricsDTO vmMetrics(@PathVariable String courseName, @RequestParam(defaultValue = "60") int minutes) {
+        return vmService.getCourseVmMetrics(courseName, minutes);
+    }
+
+    @GetMapping("/{courseName}/vms/usage")
+    public List<VmUsageDTO> vmUsage(@PathVariable String courseName,
+                                    @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+                                    @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        if(to == null)
+            to = LocalDateTime.now();
+        if(from == null)
+            from = to.minusDays(30);
+        return vmService.getCourseVmUsage(courseName, from, to);
+    }
+
     @GetMapping("/{courseName}/professors")
     public List<ProfessorDTO> professors(@PathVariable String courseName) {
         List<ProfessorDTO> professors = teamService.getProfessorsForCourse(courseName);
@@ -207,6 +225,12 @@ public class CourseController {
         return generatedId;
     }
 
+    @PostMapping("/{courseName}/vms/powerOff")
+    @ResponseStatus(HttpStatus.OK)
+    public Map<Long, Boolean> powerOffVms(@PathVariable String courseName) {
+        return vmService.powerOffCourseVms(courseName);
+    }
+
     @PutMapping("/{courseName}")
     @ResponseStatus(HttpStatus.OK)
     public boolean editCourse(@PathVariable String courseName, @RequestBody CourseDTO courseDTO) {
@@ -5,13 +5,16 @@ import it.polito.ai.virtualLabs.services.NotificationService;
 import it.polito.ai.virtualLabs.services.TeamService;
 import it.polito.ai.virtualLabs.services.VmService;
 import it.polito.ai.virtualLabs.services.exceptions.student.StudentNotFoundException;
+import it.polito.ai.virtualLabs.services.exceptions.team.TeamProposalNotValidException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.mail.MailException;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.mail.AuthenticationFailedException;
 import javax.mail.MessagingException;
@@ -64,6 +67,16 @@ public class TeamController {
         return vms;
     }
 
+    @GetMapping(path = "/{teamId}/vms/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter vmEventsForTeam(@PathVariable Long teamId) {
+        return vmService.subscribeToTeamVmEvents(teamId);
+    }
+
+    @GetMapping("/teamProposals/metrics")
+    public TeamProposalSweepMetricsDTO teamProposalSweepMetrics() {
+        return teamService.getTeamProposalSweepMetrics();
+    }
+
     @GetMapping("/teamProposals/{teamProposalId}")
     public TeamProposalDTO getOneProposal(@PathVariable Long teamProposalId) {
         Optional<TeamProposalDTO> teamProposal = teamService.getTeamProposal(teamProposalId);
@@ -105,6 +118,8 @@ public class TeamController {
             return teamService.proposeTeam(courseName, teamName, studentIds, userDetails.getUsername());
         } catch (MessagingException e) {
             throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        } catch (TeamProposalNotValidException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, String.join("; ", e.getViolations()));
         } catch (Exception e) {
             throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
         }
@@ -132,6 +147,12 @@ public class TeamController {
         return ModelHelper.enrich(vmService.getVm(generatedId).get());
     }
 
+    @PostMapping("/{teamId}/vms/powerOff")
+    @ResponseStatus(HttpStatus.OK)
+    public Map<Long, Boolean> powerOffVms(@PathVariable Long teamId) {
+        return vmService.powerOffTeamVms(teamId);
+    }
+
     @PostMapping("/sendMessageToTeam")
     @ResponseStatus(HttpStatus.OK)
     public void sendMessage(@RequestBody MessageDTO data, @AuthenticationPrincipal UserDetails userDetails) {
@@ -5,6 +5,7 @@ import it.polito.ai.virtualLabs.entities.VmModel;
 import it.polito.ai.virtualLabs.services.VmService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
@@ -22,10 +23,15 @@ public class VmController {
 
     @GetMapping("/heartbeat/{vmId}")
     public boolean heartBeat(@PathVariable Long vmId) {
-        Optional<VmDTO> vm = vmService.getVm(vmId);
-        if(!vm.isPresent())
+        Optional<Boolean> active = vmService.getVmPowerState(vmId);
+        if(!active.isPresent())
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, vmId.toString());
-        return vm.get().isActive();
+        return active.get();
+    }
+
+    @GetMapping("/hosts/metrics")
+    public HostPoolMetricsDTO hostPoolMetrics() {
+        return vmService.getHostPoolMetrics();
     }
 
     @GetMapping("/{vmId}")
@@ -131,10 +137,15 @@ public class VmController {
     }
 
     @PutMapping("/{vmId}/powerOn")
-    @ResponseStatus(HttpStatus.OK)
-    public void powerOn(@PathVariable Long vmId) {
-        if(!vmService.powerOnVm(vmId))
-            throw new ResponseStatusException(HttpStatus.CONFLICT, "Error in powering on the vm with id: " + vmId);
+    public ResponseEntity<Void> powerOn(@PathVariable Long vmId) {
+        switch(vmService.powerOnVm(vmId)) {
+            case POWERED_ON:
+                return ResponseEntity.ok().build();
+            case QUEUED:
+                return ResponseEntity.accepted().build();
+            default:
+                throw new ResponseStatusException(HttpStatus.CONFLICT, "Error in powering on the vm with id: " + vmId);
+        }
     }
 
     @PutMapping("/{vmId}/powerOff")
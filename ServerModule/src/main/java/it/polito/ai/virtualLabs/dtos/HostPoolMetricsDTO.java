@@ -0,0 +1,18 @@
+package it.polito.ai.virtualLabs.dtos;
+
+import lombok.Data;
+
+@Data
+public class HostPoolMetricsDTO {
+    int hosts;
+    int usedHosts;
+    int placedVms;
+    double vCPUDensity;
+    double ramDensity;
+    double diskDensity;
+    double vCPUFragmentation;
+    double ramFragmentation;
+    double diskFragmentation;
+    long rejectedPlacements;
+    long migrations;
+}
@@ -0,0 +1,14 @@
+package it.polito.ai.virtualLabs.dtos;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+public class TeamProposalSweepMetricsDTO {
+    LocalDateTime lastSweep;
+    int lastExpired;
+    int lastPurged;
+    long expiredTotal;
+    long purgedTotal;
+}
@@ -1,5 +1,6 @@
 package it.polito.ai.virtualLabs.dtos;
 
+import it.polito.ai.virtualLabs.entities.Vm;
 import lombok.Data;
 import org.springframework.hateoas.RepresentationModel;
 
@@ -10,6 +11,7 @@ public class VmDTO extends RepresentationModel<VmDTO> {
     @Id
     Long id;
     boolean active;
+    Vm.VmStatus status;
     int vCPU;
     int RAM;
     int disk;
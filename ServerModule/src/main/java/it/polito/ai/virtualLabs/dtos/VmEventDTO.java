@@ -0,0 +1,32 @@
+package it.polito.ai.virtualLabs.dtos;
+
+import it.polito.ai.virtualLabs.entities.Vm;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+public class VmEventDTO {
+    Type type;
+    Long vmId;
+    Long teamId;
+    String courseName;
+    Long vmModelId;
+    boolean active;
+    Vm.VmStatus status;
+    int vCPU;
+    int RAM;
+    int disk;
+    LocalDateTime timestamp = LocalDateTime.now();
+
+    public enum Type {
+        CREATED,
+        POWER_ON_QUEUED,
+        POWERED_ON,
+        POWERED_OFF,
+        STATUS_CHANGED,
+        RESOURCES_EDITED,
+        REMOVED,
+        RESYNC
+    }
+}
@@ -0,0 +1,35 @@
+package it.polito.ai.virtualLabs.dtos;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Data
+public class VmMetricsDTO {
+    String courseName;
+    Usage total;
+    Map<Long, Usage> vmModels = new HashMap<>();
+    List<Sample> history = new ArrayList<>();
+
+    @Data
+    public static class Usage {
+        int vms;
+        int activeVms;
+        long activeVCPU;
+        long activeRAM;
+        long activeDisk;
+    }
+
+    // peak values reached within the minute
+    @Data
+    public static class Sample {
+        LocalDateTime minute;
+        int activeVms;
+        long activeVCPU;
+        long activeRAM;
+    }
+}
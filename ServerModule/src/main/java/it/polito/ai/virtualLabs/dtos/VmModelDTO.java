@@ -16,4 +16,5 @@ public class VmModelDTO extends RepresentationModel<VmModelDTO> {
     int maxRAM;
     int maxTotVm;
     int maxActiveVm;
+    int idleTimeout;
 }
@@ -0,0 +1,12 @@
+package it.polito.ai.virtualLabs.dtos;
+
+import lombok.Data;
+
+@Data
+public class VmUsageDTO {
+    Long teamId;
+    Long vmModelId;
+    double vCPUHours;
+    double ramGBHours;
+    double diskGBDays;
+}
@@ -1,7 +1,8 @@
 package it.polito.ai.virtualLabs.entities;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import org.hibernate.validator.constraints.Length;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.format.annotation.DateTimeFormat.ISO;
@@ -11,7 +12,8 @@ import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 
-@Data
+@Getter
+@Setter
 @Entity
 public class Assignment {
     @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -61,4 +63,18 @@ public class Assignment {
             c.getAssignments().add(this);
         course = c;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof Assignment))
+            return false;
+        return id != null && id.equals(((Assignment) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return Assignment.class.hashCode();
+    }
 }
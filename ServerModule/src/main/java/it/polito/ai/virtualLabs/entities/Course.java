@@ -1,14 +1,19 @@
 package it.polito.ai.virtualLabs.entities;
 
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 
 import javax.persistence.*;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 
-@Data
+@Getter
+@Setter
 @Entity
 public class Course {
 
@@ -21,7 +26,8 @@ public class Course {
     boolean enabled;
 
     @ManyToMany(mappedBy = "courses")
-    List<Student> students = new ArrayList<>();
+    @OrderBy("id")
+    Set<Student> students = new LinkedHashSet<>();
 
     @ManyToMany(mappedBy = "courses")
     List<Professor> professors = new ArrayList<>();
@@ -68,4 +74,19 @@ public class Course {
         t.setCourse(null);
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof Course))
+            return false;
+        return name != null && name.equals(((Course) o).getName());
+    }
+
+    // the name is the primary key, chosen by the professor before the course is saved, so it
+    // can be hashed without the hash changing on persist
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(name);
+    }
 }
@@ -0,0 +1,75 @@
+package it.polito.ai.virtualLabs.entities;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+@Getter
+@Setter
+@Entity
+@NoArgsConstructor
+@Table(indexes = {
+        @Index(name = "idx_email_outbox_due", columnList = "status,nextAttemptAt"),
+        @Index(name = "idx_email_outbox_recipient", columnList = "recipient,status")
+})
+public class EmailOutbox {
+
+    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private String recipient;
+
+    private String subject;
+
+    @Lob
+    private String body;
+
+    @Enumerated(EnumType.STRING)
+    private EmailStatus status;
+
+    private int attempts;
+
+    // merged with the other pending digest emails of the recipient when it is sent
+    private boolean digest;
+
+    private LocalDateTime createdAt;
+
+    private LocalDateTime nextAttemptAt;
+
+    private LocalDateTime sentAt;
+
+    @Column(length = 1000)
+    private String lastError;
+
+    public EmailOutbox(String recipient, String subject, String body) {
+        this.recipient = recipient;
+        this.subject = subject;
+        this.body = body;
+        this.status = EmailStatus.PENDING;
+        this.createdAt = LocalDateTime.now();
+        this.nextAttemptAt = this.createdAt;
+    }
+
+    public enum EmailStatus {
+        PENDING,
+        SENT,
+        FAILED
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof EmailOutbox))
+            return false;
+        return id != null && id.equals(((EmailOutbox) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return EmailOutbox.class.hashCode();
+    }
+}
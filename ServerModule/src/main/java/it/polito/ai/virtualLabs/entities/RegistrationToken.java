@@ -1,10 +1,12 @@
 package it.polito.ai.virtualLabs.entities;
 
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import javax.persistence.Entity;
 import java.time.LocalDateTime;
 
-@Data
+@Getter
+@Setter
 @Entity
 public class RegistrationToken extends Token {
 
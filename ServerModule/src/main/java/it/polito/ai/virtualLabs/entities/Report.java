@@ -1,6 +1,7 @@
 package it.polito.ai.virtualLabs.entities;
 
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 
 import javax.persistence.*;
 import javax.validation.constraints.Max;
@@ -10,7 +11,8 @@ import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 
-@Data
+@Getter
+@Setter
 @Entity
 public class Report {
 
@@ -60,4 +62,18 @@ public class Report {
             s.getReports().add(this);
         owner = s;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof Report))
+            return false;
+        return id != null && id.equals(((Report) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return Report.class.hashCode();
+    }
 }
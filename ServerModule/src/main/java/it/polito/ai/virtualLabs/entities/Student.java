@@ -1,12 +1,17 @@
 package it.polito.ai.virtualLabs.entities;
 
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 
 import javax.persistence.*;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
-@Data
+@Getter
+@Setter
 @Entity
 public class Student extends User{
 
@@ -15,19 +20,21 @@ public class Student extends User{
             joinColumns = @JoinColumn(name="student_id"),
             inverseJoinColumns = @JoinColumn(name="course_name")
     )
-    private List<Course> courses = new ArrayList<>();
+    @OrderBy("name")
+    private Set<Course> courses = new LinkedHashSet<>();
 
     @ManyToMany(mappedBy = "students")
-    private List<Team> teams = new ArrayList<>();
+    @OrderBy("id")
+    private Set<Team> teams = new LinkedHashSet<>();
 
     @OneToMany(mappedBy = "owner", cascade = CascadeType.REMOVE, orphanRemoval = true)
     private List<Report> reports = new ArrayList<>();
 
     @ManyToMany(mappedBy = "students")
-    private List<TeamProposal> teamProposals = new ArrayList<>();
+    private Set<TeamProposal> teamProposals = new HashSet<>();
 
     @ManyToMany(mappedBy = "owners", cascade = CascadeType.MERGE)
-    private List<Vm> vms = new ArrayList<>();
+    private Set<Vm> vms = new HashSet<>();
 
     public void addCourse(Course c) {
         courses.add(c);
@@ -1,14 +1,18 @@
 package it.polito.ai.virtualLabs.entities;
 
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotNull;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 @Entity
-@Data
+@Getter
+@Setter
 public class Team {
 
     @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -25,7 +29,8 @@ public class Team {
             joinColumns = @JoinColumn(name = "team_id"),
             inverseJoinColumns = @JoinColumn(name = "student_id"))
     @ManyToMany
-    private List<Student> students = new ArrayList<>();
+    @OrderBy("id")
+    private Set<Student> students = new LinkedHashSet<>();
 
     @OneToMany(mappedBy = "team", cascade = CascadeType.REMOVE, orphanRemoval = true)
     private List<Vm> vms = new ArrayList<>();
@@ -47,4 +52,18 @@ public class Team {
         students.remove(s);
         s.getTeams().remove(this);
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof Team))
+            return false;
+        return id != null && id.equals(((Team) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return Team.class.hashCode();
+    }
 }
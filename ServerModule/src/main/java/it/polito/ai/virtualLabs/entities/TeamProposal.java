@@ -1,19 +1,23 @@
 package it.polito.ai.virtualLabs.entities;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import org.springframework.boot.context.properties.bind.DefaultValue;
 import org.springframework.format.annotation.DateTimeFormat;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotNull;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
-@Data
+@Getter
+@Setter
 @Entity
+@Table(indexes = @Index(name = "idx_team_proposal_status_expiry", columnList = "status,expiryDate"))
 public class TeamProposal {
 
     @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -33,8 +37,8 @@ public class TeamProposal {
     @NotNull
     private String creatorId;
 
-    @ElementCollection(fetch=FetchType.EAGER)
-    private List<String> tokens = new ArrayList<>();
+    @OneToMany(mappedBy = "teamProposal", cascade = CascadeType.ALL, orphanRemoval = true)
+    private Set<TeamProposalInvitation> invitations = new HashSet<>();
 
     @ManyToOne
     @JoinColumn(name = "course_name")
@@ -44,14 +48,12 @@ public class TeamProposal {
             joinColumns = @JoinColumn(name = "teamProposal_id"),
             inverseJoinColumns = @JoinColumn(name = "student_id"))
     @ManyToMany
-    List<Student> students = new ArrayList<>();
+    @OrderBy("id")
+    Set<Student> students = new LinkedHashSet<>();
 
-    public void addToken(String token) {
-        tokens.add(token);
-    }
-
-    public void removeToken(String token) {
-        tokens.remove(token);
+    public void addInvitation(TeamProposalInvitation invitation) {
+        invitations.add(invitation);
+        invitation.setTeamProposal(this);
     }
 
     public void addStudent(Student s) {
@@ -75,6 +77,21 @@ public class TeamProposal {
     public enum TeamProposalStatus {
         PENDING,
         CONFIRMED,
-        REJECTED
+        REJECTED,
+        EXPIRED
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof TeamProposal))
+            return false;
+        return id != null && id.equals(((TeamProposal) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return TeamProposal.class.hashCode();
     }
 }
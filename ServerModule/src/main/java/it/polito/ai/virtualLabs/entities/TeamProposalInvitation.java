@@ -0,0 +1,63 @@
+package it.polito.ai.virtualLabs.entities;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.*;
+
+@Getter
+@Setter
+@Entity
+@NoArgsConstructor
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_invitation_proposal_student", columnNames = {"teamProposal_id", "student_id"}),
+        indexes = {
+                @Index(name = "idx_invitation_student", columnList = "student_id,status"),
+                @Index(name = "idx_invitation_token", columnList = "token", unique = true)
+        })
+public class TeamProposalInvitation {
+
+    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "teamProposal_id")
+    private TeamProposal teamProposal;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "student_id")
+    private Student student;
+
+    // digest of the token sent by email, the token itself is not stored
+    private String token;
+
+    @Enumerated(EnumType.STRING)
+    private InvitationStatus status;
+
+    public TeamProposalInvitation(TeamProposal teamProposal, Student student, String token) {
+        this.teamProposal = teamProposal;
+        this.student = student;
+        this.token = token;
+        this.status = InvitationStatus.PENDING;
+    }
+
+    public enum InvitationStatus {
+        PENDING,
+        ACCEPTED,
+        REJECTED
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof TeamProposalInvitation))
+            return false;
+        return id != null && id.equals(((TeamProposalInvitation) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return TeamProposalInvitation.class.hashCode();
+    }
+}
@@ -1,16 +1,19 @@
 package it.polito.ai.virtualLabs.entities;
 
 import lombok.AllArgsConstructor;
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.NoArgsConstructor;
 
 import javax.persistence.*;
 import java.time.LocalDateTime;
 
-@Data
+@Getter
+@Setter
 @Entity
 @AllArgsConstructor
 @NoArgsConstructor
+@Table(indexes = @Index(name = "idx_token_expiration", columnList = "expiration"))
 @Inheritance(strategy = InheritanceType.SINGLE_TABLE)
 @DiscriminatorColumn(name="tokenType", discriminatorType = DiscriminatorType.STRING)
 public class Token {
@@ -22,4 +25,18 @@ public class Token {
     private User user;
 
     private LocalDateTime expiration;
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof Token))
+            return false;
+        return token != null && token.equals(((Token) o).getToken());
+    }
+
+    @Override
+    public int hashCode() {
+        return Token.class.hashCode();
+    }
 }
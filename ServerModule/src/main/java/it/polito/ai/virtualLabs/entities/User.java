@@ -2,8 +2,11 @@ package it.polito.ai.virtualLabs.entities;
 
 import lombok.AllArgsConstructor;
 import lombok.Builder;
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
 import org.hibernate.loader.entity.CascadeEntityJoinWalker;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -17,7 +20,8 @@ import java.util.*;
 import static java.util.stream.Collectors.toList;
 
 @Entity
-@Data
+@Getter
+@Setter
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
@@ -43,7 +47,9 @@ public class User implements UserDetails {
     @NotEmpty
     private String surname;
 
+    // the roles of all the users read by the same query are loaded with one more select
     @ElementCollection(fetch = FetchType.EAGER)
+    @Fetch(FetchMode.SUBSELECT)
     @Builder.Default
     private List<String> roles = new ArrayList<>();
 
@@ -73,4 +79,20 @@ public class User implements UserDetails {
     public boolean isEnabled() {
         return true;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof User))
+            return false;
+        return id != null && id.equals(((User) o).getId());
+    }
+
+    // the id is the student or professor number, known before the user is saved: hashing it spreads
+    // the students of a large course over the buckets of its set
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(id);
+    }
 }
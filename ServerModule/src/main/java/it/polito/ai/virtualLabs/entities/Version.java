@@ -1,14 +1,16 @@
 package it.polito.ai.virtualLabs.entities;
 
 import lombok.Builder;
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import org.springframework.boot.context.properties.bind.DefaultValue;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotEmpty;
 import java.time.LocalDateTime;
 
-@Data
+@Getter
+@Setter
 @Entity
 public class Version {
 
@@ -35,4 +37,18 @@ public class Version {
             r.getVersions().add(this);
         report = r;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof Version))
+            return false;
+        return id != null && id.equals(((Version) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return Version.class.hashCode();
+    }
 }
@@ -1,12 +1,14 @@
 package it.polito.ai.virtualLabs.entities;
 
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 
 import javax.persistence.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
-@Data
+@Getter
+@Setter
 @Entity
 public class Vm {
 
@@ -15,6 +17,9 @@ public class Vm {
 
     private boolean active;
 
+    @Enumerated(EnumType.STRING)
+    private VmStatus status = VmStatus.STOPPED;
+
     private int vCPU;
     private int RAM;
     private int disk;
@@ -25,7 +30,8 @@ public class Vm {
 
     @ManyToMany
     @JoinColumn(name = "student_id")
-    private List<Student> owners = new ArrayList<>();
+    @OrderBy("id")
+    private Set<Student> owners = new LinkedHashSet<>();
 
     @ManyToOne
     @JoinColumn(name = "team_id")
@@ -37,6 +43,20 @@ public class Vm {
 
     private String content;
 
+    public enum VmStatus {
+        STOPPED,
+        STARTING,
+        RUNNING,
+        STOPPING,
+    }
+
+    @PostLoad
+    private void initStatus() {
+        //rows stored before the status was introduced
+        if(status == null)
+            status = active ? VmStatus.RUNNING : VmStatus.STOPPED;
+    }
+
     public void setTeam(Team t) {
         if(team != null)
             team.getVms().remove(this);
@@ -65,4 +85,18 @@ public class Vm {
         owners.add(s);
         s.getVms().add(this);
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof Vm))
+            return false;
+        return id != null && id.equals(((Vm) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return Vm.class.hashCode();
+    }
 }
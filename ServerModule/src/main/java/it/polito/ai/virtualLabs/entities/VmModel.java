@@ -1,13 +1,15 @@
 package it.polito.ai.virtualLabs.entities;
 
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import org.modelmapper.Converters;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotNull;
 import java.util.*;
 
-@Data
+@Getter
+@Setter
 @Entity
 public class VmModel {
 
@@ -23,6 +25,7 @@ public class VmModel {
     private int maxRAM;
     private int maxTotVm;
     private int maxActiveVm;
+    private int idleTimeout; //minutes without heartbeat before an active vm is powered off, 0 for the default
 
     private static final Map<String, String> osMap;
     static {
@@ -65,4 +68,18 @@ public class VmModel {
             c.setVmModel(this);
         course = c;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof VmModel))
+            return false;
+        return id != null && id.equals(((VmModel) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return VmModel.class.hashCode();
+    }
 }
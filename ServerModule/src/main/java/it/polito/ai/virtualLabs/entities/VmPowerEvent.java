@@ -0,0 +1,69 @@
+package it.polito.ai.virtualLabs.entities;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+// append-only: ids are copied so that the history outlives the vm, its team and its course
+@Getter
+@Setter
+@Entity
+@NoArgsConstructor
+@Table(indexes = @Index(name = "idx_vm_power_event_timestamp", columnList = "timestamp, id"))
+public class VmPowerEvent {
+
+    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    private EventType type;
+
+    private Long vmId;
+    private Long teamId;
+    private String courseName;
+    private Long vmModelId;
+
+    private int vCPU;
+    private int RAM;
+    private int disk;
+
+    private LocalDateTime timestamp = LocalDateTime.now();
+
+    public enum EventType {
+        CREATED,
+        RESIZED,
+        POWERED_ON,
+        POWERED_OFF,
+        REMOVED,
+    }
+
+    public VmPowerEvent(EventType type, Long vmId, Long teamId, String courseName, Long vmModelId,
+                        int vCPU, int RAM, int disk, LocalDateTime timestamp) {
+        this.type = type;
+        this.vmId = vmId;
+        this.teamId = teamId;
+        this.courseName = courseName;
+        this.vmModelId = vmModelId;
+        this.vCPU = vCPU;
+        this.RAM = RAM;
+        this.disk = disk;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof VmPowerEvent))
+            return false;
+        return id != null && id.equals(((VmPowerEvent) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return VmPowerEvent.class.hashCode();
+    }
+}
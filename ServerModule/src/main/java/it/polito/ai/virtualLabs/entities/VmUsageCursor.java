@@ -0,0 +1,36 @@
+package it.polito.ai.virtualLabs.entities;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import java.time.LocalDateTime;
+
+// position of the usage aggregator in the power event log
+@Getter
+@Setter
+@Entity
+public class VmUsageCursor {
+
+    @Id
+    private String name;
+
+    private LocalDateTime accountedUntil;
+    private LocalDateTime lastEventTimestamp;
+    private Long lastEventId;
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof VmUsageCursor))
+            return false;
+        return name != null && name.equals(((VmUsageCursor) o).getName());
+    }
+
+    @Override
+    public int hashCode() {
+        return VmUsageCursor.class.hashCode();
+    }
+}
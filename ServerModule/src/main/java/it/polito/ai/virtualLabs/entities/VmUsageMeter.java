@@ -0,0 +1,40 @@
+package it.polito.ai.virtualLabs.entities;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+// state of an existing vm as of the last power event accounted
+@Getter
+@Setter
+@Entity
+public class VmUsageMeter {
+
+    @Id
+    private Long vmId;
+
+    private Long teamId;
+    private String courseName;
+    private Long vmModelId;
+
+    private boolean active;
+    private int vCPU;
+    private int RAM;
+    private int disk;
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof VmUsageMeter))
+            return false;
+        return vmId != null && vmId.equals(((VmUsageMeter) o).getVmId());
+    }
+
+    @Override
+    public int hashCode() {
+        return VmUsageMeter.class.hashCode();
+    }
+}
@@ -0,0 +1,42 @@
+package it.polito.ai.virtualLabs.entities;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+// usage of the vms of a team and vm model within one hour
+@Getter
+@Setter
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_vm_usage_rollup_bucket", columnNames = {"teamId", "vmModelId", "bucketStart"}),
+        indexes = @Index(name = "idx_vm_usage_rollup_course", columnList = "courseName, bucketStart"))
+public class VmUsageRollup {
+
+    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    private Long teamId;
+    private String courseName;
+    private Long vmModelId;
+    private LocalDateTime bucketStart;
+
+    private double vCPUHours;
+    private double ramGBHours;
+    private double diskGBDays;
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof VmUsageRollup))
+            return false;
+        return id != null && id.equals(((VmUsageRollup) o).getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return VmUsageRollup.class.hashCode();
+    }
+}
@@ -3,9 +3,12 @@ package it.polito.ai.virtualLabs.repositories;
 import it.polito.ai.virtualLabs.entities.Course;
 import it.polito.ai.virtualLabs.entities.Student;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -15,4 +18,28 @@ public interface CourseRepository extends JpaRepository<Course, String> {
 
     @Query("SELECT s FROM Course c INNER JOIN c.students s WHERE c.name=:courseName AND s.id NOT IN (SELECT s.id FROM Student s INNER JOIN s.teams t INNER JOIN t.course c WHERE c.name=:courseName)")
     List<Student> getStudentsNotInTeams(String courseName);
+
+    @Query("SELECT p.username FROM Course c INNER JOIN c.professors p WHERE c.name=:courseName")
+    List<String> getProfessorUsernames(String courseName);
+
+    @Query("SELECT c.name, s.id FROM Course c INNER JOIN c.students s")
+    List<Object[]> getCourseStudentIds();
+
+    @Query("SELECT c.name, p.id FROM Course c INNER JOIN c.professors p")
+    List<Object[]> getCourseProfessorIds();
+
+    @Query("SELECT CASE WHEN COUNT(s)>0 THEN TRUE ELSE FALSE END FROM Course c INNER JOIN c.students s WHERE c.name=:courseName AND s.id=:studentId")
+    boolean isStudentEnrolled(String courseName, String studentId);
+
+    @Query("SELECT s.id FROM Course c INNER JOIN c.students s WHERE c.name=:courseName AND s.id IN :studentIds")
+    List<String> getEnrolledStudentIds(String courseName, Collection<String> studentIds);
+
+    // the students must not be enrolled yet
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO student_course (student_id, course_name) SELECT u.id, :courseName FROM user u WHERE u.id IN :studentIds", nativeQuery = true)
+    int enrollStudents(String courseName, Collection<String> studentIds);
+
+    @Query("SELECT CASE WHEN COUNT(p)>0 THEN TRUE ELSE FALSE END FROM Course c INNER JOIN c.professors p WHERE c.name=:courseName AND p.id=:professorId")
+    boolean isProfessorTeaching(String courseName, String professorId);
 }
@@ -0,0 +1,28 @@
+package it.polito.ai.virtualLabs.repositories;
+
+import it.polito.ai.virtualLabs.entities.EmailOutbox;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface EmailOutboxRepository extends JpaRepository<EmailOutbox, Long> {
+
+    @Query("SELECT e FROM EmailOutbox e WHERE e.status = :status AND e.nextAttemptAt <= :now ORDER BY e.nextAttemptAt")
+    List<EmailOutbox> getDueEmails(EmailOutbox.EmailStatus status, LocalDateTime now, Pageable pageable);
+
+    @Query("SELECT e FROM EmailOutbox e WHERE e.status = :status AND e.digest = true AND e.recipient IN :recipients ORDER BY e.createdAt")
+    List<EmailOutbox> getDigestEmails(EmailOutbox.EmailStatus status, Collection<String> recipients);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE EmailOutbox e SET e.status = :status, e.sentAt = :now, e.attempts = e.attempts + 1, e.lastError = NULL WHERE e.id IN :ids")
+    int markSent(Collection<Long> ids, EmailOutbox.EmailStatus status, LocalDateTime now);
+}
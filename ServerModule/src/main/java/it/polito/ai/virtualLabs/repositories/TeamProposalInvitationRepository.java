@@ -0,0 +1,40 @@
+package it.polito.ai.virtualLabs.repositories;
+
+import it.polito.ai.virtualLabs.entities.TeamProposal;
+import it.polito.ai.virtualLabs.entities.TeamProposalInvitation;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface TeamProposalInvitationRepository extends JpaRepository<TeamProposalInvitation, Long> {
+
+    @Query("SELECT i FROM TeamProposalInvitation i INNER JOIN FETCH i.student WHERE i.token = :token AND i.teamProposal.id = :teamProposalId")
+    Optional<TeamProposalInvitation> findByProposalAndToken(Long teamProposalId, String token);
+
+    @Query("SELECT i FROM TeamProposalInvitation i INNER JOIN FETCH i.student WHERE i.teamProposal.id = :teamProposalId AND i.student.id = :studentId")
+    Optional<TeamProposalInvitation> findByProposalAndStudent(Long teamProposalId, String studentId);
+
+    @Query("SELECT COUNT(i) FROM TeamProposalInvitation i WHERE i.teamProposal.id = :teamProposalId AND i.status = :status")
+    long countByProposalAndStatus(Long teamProposalId, TeamProposalInvitation.InvitationStatus status);
+
+    @Query("SELECT i.student.id, i.status FROM TeamProposalInvitation i " +
+            "WHERE i.student.id IN :studentIds AND i.teamProposal.course.name = :courseName AND i.teamProposal.status = :proposalStatus")
+    List<Object[]> getInvitationStatuses(Collection<String> studentIds, String courseName, TeamProposal.TeamProposalStatus proposalStatus);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM TeamProposalInvitation i WHERE i.teamProposal.id IN :teamProposalIds")
+    int deleteAllByProposalIdIn(Collection<Long> teamProposalIds);
+
+    // invitations of the student to the proposals of the course that are still open
+    @Query("SELECT i FROM TeamProposalInvitation i INNER JOIN FETCH i.teamProposal tp " +
+            "WHERE i.student.id = :studentId AND tp.course.name = :courseName AND tp.status = :proposalStatus")
+    List<TeamProposalInvitation> getInvitationsToProposals(String studentId, String courseName, TeamProposal.TeamProposalStatus proposalStatus);
+}
@@ -1,9 +1,15 @@
 package it.polito.ai.virtualLabs.repositories;
 
 import it.polito.ai.virtualLabs.entities.TeamProposal;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -13,4 +19,28 @@ public interface TeamProposalRepository extends JpaRepository<TeamProposal, Long
     List<TeamProposal> findAllByCourseNameAndStatus(String courseName, TeamProposal.TeamProposalStatus status);
     List<TeamProposal> findAllByCourseNameAndCreatorIdAndStatus(String courseName, String creatorId, TeamProposal.TeamProposalStatus status);
 
+    @Query("SELECT tp.id, s.id FROM TeamProposal tp INNER JOIN tp.students s")
+    List<Object[]> getTeamProposalStudentIds();
+
+    @Query("SELECT tp.id FROM TeamProposal tp WHERE tp.status = :status AND tp.expiryDate < :now ORDER BY tp.id")
+    List<Long> getExpiredProposalIds(TeamProposal.TeamProposalStatus status, LocalDateTime now, Pageable pageable);
+
+    @Query("SELECT tp.id FROM TeamProposal tp WHERE tp.status IN :statuses AND tp.expiryDate < :before ORDER BY tp.id")
+    List<Long> getProposalIdsExpiredBefore(Collection<TeamProposal.TeamProposalStatus> statuses, LocalDateTime before, Pageable pageable);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE TeamProposal tp SET tp.status = :status, tp.statusDesc = :statusDesc WHERE tp.id IN :ids")
+    int updateStatus(Collection<Long> ids, TeamProposal.TeamProposalStatus status, String statusDesc);
+
+    @Transactional
+    @Modifying
+    @Query(value = "DELETE FROM team_proposal_student WHERE team_proposal_id IN :ids", nativeQuery = true)
+    int deleteMembersOf(Collection<Long> ids);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM TeamProposal tp WHERE tp.id IN :ids")
+    int deleteAllByIdIn(Collection<Long> ids);
+
 }
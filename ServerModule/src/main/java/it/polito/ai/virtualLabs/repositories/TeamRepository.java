@@ -3,8 +3,11 @@ package it.polito.ai.virtualLabs.repositories;
 import it.polito.ai.virtualLabs.entities.Student;
 import it.polito.ai.virtualLabs.entities.Team;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -12,4 +15,16 @@ public interface TeamRepository extends JpaRepository<Team, Long> {
     boolean existsByNameAndCourseName(String teamName, String courseName);
     Optional<Team> findByNameAndCourseName(String teamName, String courseName);
     Optional<Team> findByStudentsContainsAndCourseName(Student student, String courseName);
+
+    @Query("SELECT s.username FROM Team t INNER JOIN t.students s WHERE t.id=:teamId")
+    List<String> getMemberUsernames(Long teamId);
+
+    @Query("SELECT t.id, t.course.name FROM Team t")
+    List<Object[]> getTeamCourseNames();
+
+    @Query("SELECT t.id, s.id FROM Team t INNER JOIN t.students s")
+    List<Object[]> getTeamStudentIds();
+
+    @Query("SELECT s.id, t.name FROM Team t INNER JOIN t.students s WHERE t.course.name=:courseName AND s.id IN :studentIds")
+    List<Object[]> getTeamNamesOfStudents(String courseName, Collection<String> studentIds);
 }
@@ -4,10 +4,16 @@ import it.polito.ai.virtualLabs.entities.RefreshToken;
 import it.polito.ai.virtualLabs.entities.RegistrationToken;
 import it.polito.ai.virtualLabs.entities.Token;
 import it.polito.ai.virtualLabs.entities.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -25,9 +31,20 @@ public interface TokenRepository extends JpaRepository<Token, String> {
     @Query("SELECT rt FROM RefreshToken rt WHERE rt.token = :token")
     RefreshToken getRefreshToken(String token);
 
+    @Query("SELECT rt FROM RefreshToken rt INNER JOIN FETCH rt.user WHERE rt.token = :token")
+    Optional<RefreshToken> findRefreshTokenWithUser(String token);
+
     @Query("SELECT rt FROM RegistrationToken rt WHERE rt.user.id = :id")
     Optional<RegistrationToken> findRegistrationTokenByUserId(String id);
 
     @Query("SELECT rt FROM RefreshToken rt WHERE rt.user.id = :id")
     Optional<RefreshToken> findRefreshTokenByUserId(String id);
+
+    @Query("SELECT t.token FROM Token t WHERE t.expiration < :now ORDER BY t.expiration")
+    List<String> getExpiredTokens(LocalDateTime now, Pageable pageable);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM Token t WHERE t.token IN :tokens")
+    int deleteAllByTokenIn(Collection<String> tokens);
 }
@@ -7,6 +7,7 @@ import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -24,6 +25,9 @@ public interface UserRepository extends JpaRepository<User, String> {
     @Query("SELECT p FROM Professor p WHERE p.registered = true")
     List<Professor> findAllProfessors();
 
+    @Query("SELECT s.id, s.username FROM Student s")
+    List<Object[]> getStudentIdsAndUsernames();
+
     @Query("SELECT s FROM Student s WHERE s.id = :studentId")
     Optional<Student> findStudentById(String studentId);
 
@@ -42,6 +46,9 @@ public interface UserRepository extends JpaRepository<User, String> {
     @Query("SELECT s FROM Student s WHERE s.username = :email")
     Student getStudentByUsername(String email);
 
+    @Query("SELECT s FROM Student s WHERE s.id IN :studentIds")
+    List<Student> getStudentsByIds(Collection<String> studentIds);
+
     @Query("SELECT p FROM Professor p WHERE p.id = :professorId")
     Professor getProfessorById(String professorId);
 
@@ -0,0 +1,18 @@
+package it.polito.ai.virtualLabs.repositories;
+
+import it.polito.ai.virtualLabs.entities.VmPowerEvent;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface VmPowerEventRepository extends JpaRepository<VmPowerEvent, Long> {
+
+    @Query("SELECT e FROM VmPowerEvent e WHERE e.timestamp < :horizon AND " +
+            "(e.timestamp > :timestamp OR (e.timestamp = :timestamp AND e.id > :id)) ORDER BY e.timestamp, e.id")
+    List<VmPowerEvent> findAfter(LocalDateTime timestamp, Long id, LocalDateTime horizon, Pageable pageable);
+}
@@ -2,8 +2,13 @@ package it.polito.ai.virtualLabs.repositories;
 
 import it.polito.ai.virtualLabs.entities.Vm;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.LockModeType;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -12,4 +17,39 @@ public interface VmRepository extends JpaRepository<Vm, Long> {
 
     Optional<Vm> findVmByTeamIdAndCreatorIdAndVmModelId(Long teamId, String studentId, Long vmModelId);
     List<Vm> findAllByVmModelId(Long vmModelId);
+    List<Vm> findAllByTeamId(Long teamId);
+    List<Vm> findAllByActiveTrue();
+
+    @Query("SELECT v.id FROM Vm v")
+    List<Long> getAllVmIds();
+
+    @Query("SELECT v.id, v.team.id FROM Vm v")
+    List<Object[]> getVmTeamIds();
+
+    @Query("SELECT v.id, o.id FROM Vm v INNER JOIN v.owners o")
+    List<Object[]> getVmOwnerIds();
+
+    @Query("SELECT v.id FROM Vm v WHERE v.team.id=:teamId")
+    List<Long> getVmIdsByTeamId(Long teamId);
+
+    @Query("SELECT v.id FROM Vm v WHERE v.team.course.name=:courseName")
+    List<Long> getVmIdsByCourseName(String courseName);
+
+    // id, vmModel id, active, vCPU, RAM, disk of every vm of the course
+    @Query("SELECT v.id, v.vmModel.id, v.active, v.vCPU, v.RAM, v.disk FROM Vm v WHERE v.team.course.name=:courseName")
+    List<Object[]> getVmUsageByCourseName(String courseName);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT v FROM Vm v WHERE v.id = :vmId")
+    Optional<Vm> lockVm(Long vmId);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT v FROM Vm v WHERE v.id IN :vmIds")
+    List<Vm> lockVms(Collection<Long> vmIds);
+
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE Vm v SET v.active = false, v.status = :status WHERE v.id IN :vmIds")
+    int powerOffAll(Collection<Long> vmIds, Vm.VmStatus status);
+
+    List<Vm> findAllByStatusIn(Collection<Vm.VmStatus> statuses);
 }
@@ -0,0 +1,9 @@
+package it.polito.ai.virtualLabs.repositories;
+
+import it.polito.ai.virtualLabs.entities.VmUsageCursor;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface VmUsageCursorRepository extends JpaRepository<VmUsageCursor, String> {
+}
@@ -0,0 +1,9 @@
+package it.polito.ai.virtualLabs.repositories;
+
+import it.polito.ai.virtualLabs.entities.VmUsageMeter;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface VmUsageMeterRepository extends JpaRepository<VmUsageMeter, Long> {
+}
@@ -0,0 +1,22 @@
+package it.polito.ai.virtualLabs.repositories;
+
+import it.polito.ai.virtualLabs.entities.VmUsageRollup;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface VmUsageRollupRepository extends JpaRepository<VmUsageRollup, Long> {
+
+    List<VmUsageRollup> findAllByBucketStartIn(Collection<LocalDateTime> bucketStarts);
+
+    // team id, vmModel id, vCPU-hours, RAM GB-hours, disk GB-days
+    @Query("SELECT r.teamId, r.vmModelId, SUM(r.vCPUHours), SUM(r.ramGBHours), SUM(r.diskGBDays) FROM VmUsageRollup r " +
+            "WHERE r.courseName = :courseName AND r.bucketStart >= :from AND r.bucketStart < :to " +
+            "GROUP BY r.teamId, r.vmModelId")
+    List<Object[]> sumByCourseName(String courseName, LocalDateTime from, LocalDateTime to);
+}
@@ -0,0 +1,329 @@
+package it.polito.ai.virtualLabs.security;
+
+import it.polito.ai.virtualLabs.repositories.CourseRepository;
+import it.polito.ai.virtualLabs.repositories.TeamProposalRepository;
+import it.polito.ai.virtualLabs.repositories.TeamRepository;
+import it.polito.ai.virtualLabs.repositories.UserRepository;
+import it.polito.ai.virtualLabs.repositories.VmRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import static it.polito.ai.virtualLabs.services.vm.TransactionActions.afterCommit;
+
+/**
+ * Memberships the authorization checks are based on: the students of every course, team and team
+ * proposal as bitsets over compact student ordinals, the courses of every student and professor as
+ * bitsets over compact course ordinals, the course of every team and the team and owners of every
+ * vm. It is loaded with a handful of queries the first time it is used; enrollments, teams and vms
+ * are then applied as they are committed, while the rarer structural changes mark it to be loaded
+ * again.
+ */
+@Component
+public class AuthorizationIndex {
+
+    @Autowired
+    UserRepository userRepository;
+    @Autowired
+    CourseRepository courseRepository;
+    @Autowired
+    TeamRepository teamRepository;
+    @Autowired
+    VmRepository vmRepository;
+    @Autowired
+    TeamProposalRepository teamProposalRepository;
+    @Autowired
+    RequestMemo requestMemo;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Memberships memberships;
+    private boolean stale = true;
+    private long updates = 0;
+
+    public boolean isEnrolled(String studentId, String courseName) {
+        return read(() -> {
+            Integer ordinal = memberships.ordinals.get(studentId);
+            BitSet students = memberships.courseStudents.get(courseName);
+            return ordinal != null && students != null && students.get(ordinal);
+        });
+    }
+
+    public boolean teaches(String professorId, String courseName) {
+        return read(() -> {
+            Integer course = memberships.courseOrdinals.get(courseName);
+            BitSet courses = memberships.professorCourses.get(professorId);
+            return course != null && courses != null && courses.get(course);
+        });
+    }
+
+    // true if the other student is enrolled in at least one course of the student
+    public boolean sharesCourse(String studentId, String otherStudentId) {
+        return read(() -> {
+            Integer ordinal = memberships.ordinals.get(studentId);
+            Integer other = memberships.ordinals.get(otherStudentId);
+            if(ordinal == null || other == null)
+                return false;
+            return memberships.studentCourses.get(ordinal).intersects(memberships.studentCourses.get(other));
+        });
+    }
+
+    // true if the student is enrolled in at least one course of the professor
+    public boolean teachesStudent(String professorId, String studentId) {
+        return read(() -> {
+            Integer ordinal = memberships.ordinals.get(studentId);
+            BitSet courses = memberships.professorCourses.get(professorId);
+            return ordinal != null && courses != null && courses.intersects(memberships.studentCourses.get(ordinal));
+        });
+    }
+
+    // true if the other student is a member of at least one team proposal of the student
+    public boolean sharesTeamProposal(String studentId, String otherStudentId) {
+        return read(() -> {
+            Integer ordinal = memberships.ordinals.get(studentId);
+            Integer other = memberships.ordinals.get(otherStudentId);
+            if(ordinal == null || other == null)
+                return false;
+            return memberships.studentProposals.get(ordinal)
+                    .stream()
+                    .anyMatch(proposalId -> memberships.proposalMembers.get(proposalId).get(other));
+        });
+    }
+
+    // true if all the students are enrolled in the same course of the professor
+    public boolean teachesAll(String professorId, Collection<String> usernames) {
+        return read(() -> {
+            BitSet recipients = new BitSet();
+            for(String username : usernames) {
+                Integer ordinal = memberships.usernameOrdinals.get(username);
+                if(ordinal == null)
+                    return false;
+                recipients.set(ordinal);
+            }
+            BitSet courses = memberships.professorCourses.getOrDefault(professorId, new BitSet());
+            for(int course = courses.nextSetBit(0); course >= 0; course = courses.nextSetBit(course + 1)) {
+                BitSet missing = (BitSet) recipients.clone();
+                missing.andNot(memberships.courseStudents.getOrDefault(memberships.courseNames.get(course), new BitSet()));
+                if(missing.isEmpty())
+                    return true;
+            }
+            return false;
+        });
+    }
+
+    public boolean isTeamMember(String studentId, Long teamId) {
+        return read(() -> {
+            Integer ordinal = memberships.ordinals.get(studentId);
+            BitSet members = memberships.teamMembers.get(teamId);
+            return ordinal != null && members != null && members.get(ordinal);
+        });
+    }
+
+    public boolean isVmOwner(String studentId, Long vmId) {
+        return read(() -> {
+            Integer ordinal = memberships.ordinals.get(studentId);
+            BitSet owners = memberships.vmOwners.get(vmId);
+            return ordinal != null && owners != null && owners.get(ordinal);
+        });
+    }
+
+    public Optional<Long> getVmTeam(Long vmId) {
+        return read(() -> Optional.ofNullable(memberships.vmTeams.get(vmId)));
+    }
+
+    public Optional<String> getTeamCourse(Long teamId) {
+        return read(() -> Optional.ofNullable(memberships.teamCourses.get(teamId)));
+    }
+
+    public void studentEnrolled(String studentId, String username, String courseName) {
+        update(m -> m.enroll(m.ordinalOf(studentId, username), courseName));
+    }
+
+    public void studentUnenrolled(String studentId, String courseName) {
+        update(m -> {
+            Integer ordinal = m.ordinals.get(studentId);
+            BitSet students = m.courseStudents.get(courseName);
+            if(ordinal != null && students != null) {
+                students.clear(ordinal);
+                m.studentCourses.get(ordinal).clear(m.courseOrdinalOf(courseName));
+            }
+        });
+    }
+
+    public void professorAdded(String professorId, String courseName) {
+        update(m -> m.professorCourses.computeIfAbsent(professorId, p -> new BitSet()).set(m.courseOrdinalOf(courseName)));
+    }
+
+    public void professorRemoved(String professorId, String courseName) {
+        update(m -> m.professorCourses.getOrDefault(professorId, new BitSet()).clear(m.courseOrdinalOf(courseName)));
+    }
+
+    public void teamProposalCreated(Long proposalId, Collection<String> memberIds) {
+        update(m -> memberIds.forEach(id -> m.propose(proposalId, m.ordinalOf(id, null))));
+    }
+
+    public void teamProposalsRemoved(Collection<Long> proposalIds) {
+        update(m -> proposalIds.forEach(proposalId -> {
+            BitSet members = m.proposalMembers.remove(proposalId);
+            if(members != null)
+                members.stream().forEach(ordinal -> m.studentProposals.get(ordinal).remove(proposalId));
+        }));
+    }
+
+    public void teamCreated(Long teamId, String courseName, Collection<String> memberIds) {
+        update(m -> {
+            BitSet members = new BitSet();
+            memberIds.forEach(id -> members.set(m.ordinalOf(id, null)));
+            m.teamCourses.put(teamId, courseName);
+            m.teamMembers.put(teamId, members);
+        });
+    }
+
+    public void vmCreated(Long vmId, Long teamId, Collection<String> ownerIds) {
+        update(m -> {
+            BitSet owners = new BitSet();
+            ownerIds.forEach(id -> owners.set(m.ordinalOf(id, null)));
+            m.vmTeams.put(vmId, teamId);
+            m.vmOwners.put(vmId, owners);
+        });
+    }
+
+    public void vmRemoved(Long vmId) {
+        update(m -> {
+            m.vmTeams.remove(vmId);
+            m.vmOwners.remove(vmId);
+        });
+    }
+
+    // for the changes without a dedicated update: the index is loaded again once they are committed
+    public void invalidate() {
+        afterCommit(() -> {
+            lock.writeLock().lock();
+            try {
+                stale = true;
+                updates++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            requestMemo.clear();
+        });
+    }
+
+    private void update(java.util.function.Consumer<Memberships> change) {
+        afterCommit(() -> {
+            lock.writeLock().lock();
+            try {
+                updates++;
+                if(memberships != null)
+                    change.accept(memberships);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            //decisions taken earlier in the same request may not hold anymore
+            requestMemo.clear();
+        });
+    }
+
+    private <T> T read(Supplier<T> check) {
+        lock.readLock().lock();
+        try {
+            if(!stale)
+                return check.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+        reload();
+        lock.readLock().lock();
+        try {
+            return check.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private synchronized void reload() {
+        long startingUpdates;
+        lock.readLock().lock();
+        try {
+            if(!stale)
+                return;
+            startingUpdates = updates;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Memberships loaded = new Memberships();
+        for(Object[] row : userRepository.getStudentIdsAndUsernames())
+            loaded.ordinalOf((String) row[0], (String) row[1]);
+        for(Object[] row : courseRepository.getCourseStudentIds())
+            loaded.enroll(loaded.ordinalOf((String) row[1], null), (String) row[0]);
+        for(Object[] row : courseRepository.getCourseProfessorIds())
+            loaded.professorCourses.computeIfAbsent((String) row[1], p -> new BitSet()).set(loaded.courseOrdinalOf((String) row[0]));
+        for(Object[] row : teamRepository.getTeamCourseNames())
+            loaded.teamCourses.put((Long) row[0], (String) row[1]);
+        for(Object[] row : teamRepository.getTeamStudentIds())
+            loaded.teamMembers.computeIfAbsent((Long) row[0], t -> new BitSet()).set(loaded.ordinalOf((String) row[1], null));
+        for(Object[] row : vmRepository.getVmTeamIds())
+            loaded.vmTeams.put((Long) row[0], (Long) row[1]);
+        for(Object[] row : vmRepository.getVmOwnerIds())
+            loaded.vmOwners.computeIfAbsent((Long) row[0], v -> new BitSet()).set(loaded.ordinalOf((String) row[1], null));
+        for(Object[] row : teamProposalRepository.getTeamProposalStudentIds())
+            loaded.propose((Long) row[0], loaded.ordinalOf((String) row[1], null));
+
+        lock.writeLock().lock();
+        try {
+            memberships = loaded;
+            //changes committed while loading may be missing, in that case the next check loads again
+            stale = updates != startingUpdates;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static class Memberships {
+        private final Map<String, Integer> ordinals = new HashMap<>();
+        private final Map<String, Integer> usernameOrdinals = new HashMap<>();
+        private final Map<String, Integer> courseOrdinals = new HashMap<>();
+        private final List<String> courseNames = new ArrayList<>();
+        private final Map<String, BitSet> courseStudents = new HashMap<>();
+        // indexed by student ordinal
+        private final List<BitSet> studentCourses = new ArrayList<>();
+        private final List<Set<Long>> studentProposals = new ArrayList<>();
+        private final Map<String, BitSet> professorCourses = new HashMap<>();
+        private final Map<Long, BitSet> proposalMembers = new HashMap<>();
+        private final Map<Long, String> teamCourses = new HashMap<>();
+        private final Map<Long, BitSet> teamMembers = new HashMap<>();
+        private final Map<Long, Long> vmTeams = new HashMap<>();
+        private final Map<Long, BitSet> vmOwners = new HashMap<>();
+
+        private int ordinalOf(String studentId, String username) {
+            Integer ordinal = ordinals.computeIfAbsent(studentId, id -> {
+                studentCourses.add(new BitSet());
+                studentProposals.add(new HashSet<>());
+                return ordinals.size();
+            });
+            if(username != null)
+                usernameOrdinals.put(username, ordinal);
+            return ordinal;
+        }
+
+        private int courseOrdinalOf(String courseName) {
+            return courseOrdinals.computeIfAbsent(courseName, name -> {
+                courseNames.add(name);
+                return courseOrdinals.size();
+            });
+        }
+
+        private void enroll(int ordinal, String courseName) {
+            courseStudents.computeIfAbsent(courseName, c -> new BitSet()).set(ordinal);
+            studentCourses.get(ordinal).set(courseOrdinalOf(courseName));
+        }
+
+        private void propose(Long proposalId, int ordinal) {
+            proposalMembers.computeIfAbsent(proposalId, p -> new BitSet()).set(ordinal);
+            studentProposals.get(ordinal).add(proposalId);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package it.polito.ai.virtualLabs.security;
+
+import it.polito.ai.virtualLabs.repositories.TokenRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Deletes the expired registration and refresh tokens. The expired ones are read through the
+ * expiration index a chunk at a time and each chunk is deleted in its own short transaction, so
+ * the table is never locked for the whole purge.
+ */
+@Component
+public class ExpiredTokenPurger {
+
+    @Value("${virtuallabs.tokens.purge-chunk-size:500}")
+    private int chunkSize = 500;
+
+    @Autowired
+    TokenRepository tokenRepository;
+
+    @Scheduled(fixedDelayString = "${virtuallabs.tokens.purge-interval:3600000}")
+    public void purge() {
+        LocalDateTime now = LocalDateTime.now();
+        List<String> expired;
+        do {
+            expired = tokenRepository.getExpiredTokens(now, PageRequest.of(0, chunkSize));
+            if(!expired.isEmpty())
+                tokenRepository.deleteAllByTokenIn(expired);
+        } while(expired.size() == chunkSize);
+    }
+}
@@ -0,0 +1,83 @@
+package it.polito.ai.virtualLabs.security;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Principals loaded from the database, for the tokens that cannot be trusted on their own: the
+ * ones without the user claims and the ones issued before the roles or the registration state
+ * of their user changed. Entries expire after a fixed time and the least recently used ones are
+ * dropped beyond the maximum size.
+ */
+@Component
+public class JwtPrincipalCache {
+
+    @Value("${security.jwt.principal-cache.max-size:10000}")
+    private int maxSize = 10000;
+
+    @Value("${security.jwt.principal-cache.ttl:300000}")
+    private long ttl = 300000; // milliseconds
+
+    @Value("${security.jwt.token.expire-length:3600000}")
+    private long tokenValidity = 3600000;
+
+    private final LinkedHashMap<String, Entry> principals = new LinkedHashMap<>(16, 0.75f, true);
+    // when the user last changed, kept as long as a token issued before may still be valid
+    private final Map<String, Long> changes = new ConcurrentHashMap<>();
+
+    public synchronized JwtUserPrincipal get(String username, long notLoadedBefore) {
+        Entry entry = principals.get(username);
+        if(entry == null)
+            return null;
+        if(entry.loadedAt + ttl < System.currentTimeMillis()) {
+            principals.remove(username);
+            return null;
+        }
+        return entry.loadedAt >= notLoadedBefore ? entry.principal : null;
+    }
+
+    public synchronized void put(String username, JwtUserPrincipal principal, long loadedAt) {
+        principals.put(username, new Entry(principal, loadedAt));
+        if(principals.size() > maxSize) {
+            Iterator<Entry> eldest = principals.values().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    // 0 if the user did not change while its tokens could still be valid
+    public long lastChange(String username) {
+        Long changedAt = changes.get(username);
+        if(changedAt == null)
+            return 0;
+        if(changedAt + tokenValidity < System.currentTimeMillis()) {
+            changes.remove(username, changedAt);
+            return 0;
+        }
+        return changedAt;
+    }
+
+    public void invalidate(String username) {
+        long now = System.currentTimeMillis();
+        changes.put(username, now);
+        synchronized (this) {
+            principals.remove(username);
+        }
+        changes.values().removeIf(changedAt -> changedAt + tokenValidity < now);
+    }
+
+    private static class Entry {
+        private final JwtUserPrincipal principal;
+        private final long loadedAt;
+
+        private Entry(JwtUserPrincipal principal, long loadedAt) {
+            this.principal = principal;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package it.polito.ai.virtualLabs.security;
 
+import io.jsonwebtoken.Claims;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -27,9 +28,15 @@ public class JwtTokenFilter extends GenericFilterBean {
 
         String token = jwtTokenProvider.resolveToken((HttpServletRequest) req);
         if (token != null) {
-            if(jwtTokenProvider.validateToken(token)) {
-                Authentication auth = jwtTokenProvider.getAuthentication(token);
-                SecurityContextHolder.getContext().setAuthentication(auth);
+            Claims claims = jwtTokenProvider.parseToken(token);
+            if(claims != null) {
+                try {
+                    Authentication auth = jwtTokenProvider.getAuthentication(claims);
+                    SecurityContextHolder.getContext().setAuthentication(auth);
+                } catch (InvalidJwtAuthenticationException ex) {
+                    //the user is no longer registered, the request goes on unauthenticated
+                    SecurityContextHolder.clearContext();
+                }
             } else {
                 //((HttpServletResponse) res).setStatus(600);
                 ((HttpServletResponse) res).sendError(600);
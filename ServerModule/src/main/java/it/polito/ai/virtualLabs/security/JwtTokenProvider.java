@@ -1,12 +1,12 @@
 package it.polito.ai.virtualLabs.security;
 
 import io.jsonwebtoken.*;
+import it.polito.ai.virtualLabs.entities.User;
+import it.polito.ai.virtualLabs.repositories.UserRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
-import org.springframework.security.core.userdetails.UserDetails;
-import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
@@ -14,10 +14,15 @@ import javax.servlet.http.HttpServletRequest;
 import java.util.Base64;
 import java.util.Date;
 import java.util.List;
+import java.util.stream.Collectors;
 
 @Component
 public class JwtTokenProvider {
 
+    private static final String USER_ID_CLAIM = "userId";
+    private static final String USER_TYPE_CLAIM = "userType";
+    private static final String ROLES_CLAIM = "roles";
+
     @Value("${security.jwt.token.secret-key:secret}")
     private String secretKey = "secret";
 
@@ -25,16 +30,24 @@ public class JwtTokenProvider {
     private long validityInMilliseconds = 3600000; // 1h
 
     @Autowired
-    private UserDetailsService userDetailsService;
+    private UserRepository userRepository;
+
+    @Autowired
+    private JwtPrincipalCache principalCache;
+
+    @Autowired
+    private VerifiedTokenCache verifiedTokenCache;
 
     @PostConstruct
     protected void init() {
         secretKey = Base64.getEncoder().encodeToString(secretKey.getBytes());
     }
 
-    public String createToken(String username, List<String> roles) {
-        Claims claims = Jwts.claims().setSubject(username);
-        claims.put("roles", roles);
+    public String createToken(User user) {
+        Claims claims = Jwts.claims().setSubject(user.getUsername());
+        claims.put(USER_ID_CLAIM, user.getId());
+        claims.put(USER_TYPE_CLAIM, JwtUserPrincipal.userTypeOf(user));
+        claims.put(ROLES_CLAIM, user.getRoles());
         Date now = new Date();
         Date validity = new Date(now.getTime() + validityInMilliseconds);
         return Jwts.builder()
@@ -45,13 +58,34 @@ public class JwtTokenProvider {
                 .compact();
     }
 
-    public Authentication getAuthentication(String token) {
-        UserDetails userDetails = this.userDetailsService.loadUserByUsername(getUsername(token));
-        return new UsernamePasswordAuthenticationToken(userDetails, "", userDetails.getAuthorities());
+    public Authentication getAuthentication(Claims claims) {
+        JwtUserPrincipal principal = getPrincipal(claims);
+        return new UsernamePasswordAuthenticationToken(principal, "", principal.getAuthorities());
     }
 
-    public String getUsername(String token) {
-        return Jwts.parser().setSigningKey(secretKey).parseClaimsJws(token).getBody().getSubject();
+    private JwtUserPrincipal getPrincipal(Claims claims) {
+        String username = claims.getSubject();
+        String userId = claims.get(USER_ID_CLAIM, String.class);
+        String userType = claims.get(USER_TYPE_CLAIM, String.class);
+        List<?> roles = claims.get(ROLES_CLAIM, List.class);
+        long issuedAt = claims.getIssuedAt() != null ? claims.getIssuedAt().getTime() : 0;
+        long lastChange = principalCache.lastChange(username);
+
+        //the claims are trusted unless the user changed after the token was issued
+        if(userId != null && userType != null && roles != null && issuedAt >= lastChange)
+            return new JwtUserPrincipal(userId, username, userType,
+                    roles.stream().map(Object::toString).collect(Collectors.toList()));
+
+        JwtUserPrincipal principal = principalCache.get(username, lastChange);
+        if(principal != null)
+            return principal;
+
+        long loadedAt = System.currentTimeMillis();
+        User user = userRepository.findByUsernameAndRegisteredTrue(username).orElseThrow(() ->
+                new InvalidJwtAuthenticationException("User " + username + " is not registered"));
+        principal = JwtUserPrincipal.of(user);
+        principalCache.put(username, principal, loadedAt);
+        return principal;
     }
 
     public String resolveToken(HttpServletRequest req) {
@@ -62,14 +96,25 @@ public class JwtTokenProvider {
         return null;
     }
 
-    public boolean validateToken(String token) {
+    // claims of a valid token or null if it is expired, the signature of a token is checked only the first time
+    public Claims parseToken(String token) {
+        String digest = TokenDigests.sha256(token);
+        Claims claims = verifiedTokenCache.get(digest);
+        if(claims != null)
+            return claims;
+
         try {
-            Jws<Claims> claims = Jwts.parser().setSigningKey(secretKey).parseClaimsJws(token);
-            return !claims.getBody().getExpiration().before(new Date());
+            claims = Jwts.parser().setSigningKey(secretKey).parseClaimsJws(token).getBody();
         } catch (ExpiredJwtException e) {
-            return false;
+            return null;
         } catch (JwtException | IllegalArgumentException e) {
             throw new InvalidJwtAuthenticationException("Invalid JWT token");
         }
+        verifiedTokenCache.put(digest, claims);
+        return claims;
+    }
+
+    public boolean validateToken(String token) {
+        return parseToken(token) != null;
     }
 }
@@ -0,0 +1,91 @@
+package it.polito.ai.virtualLabs.security;
+
+import it.polito.ai.virtualLabs.entities.Professor;
+import it.polito.ai.virtualLabs.entities.Student;
+import it.polito.ai.virtualLabs.entities.User;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Authenticated user as described by the claims of its JWT, available without loading the user.
+ */
+public class JwtUserPrincipal implements UserDetails {
+
+    private static final long serialVersionUID = 4127305816214930812L;
+
+    private final String id;
+    private final String username;
+    private final String userType;
+    private final List<GrantedAuthority> authorities;
+
+    public JwtUserPrincipal(String id, String username, String userType, Collection<String> roles) {
+        this.id = id;
+        this.username = username;
+        this.userType = userType;
+        this.authorities = Collections.unmodifiableList(roles
+                .stream()
+                .map(SimpleGrantedAuthority::new)
+                .collect(Collectors.toList()));
+    }
+
+    public static JwtUserPrincipal of(User user) {
+        return new JwtUserPrincipal(user.getId(), user.getUsername(), userTypeOf(user), user.getRoles());
+    }
+
+    public static String userTypeOf(User user) {
+        if(user instanceof Student)
+            return "student";
+        if(user instanceof Professor)
+            return "professor";
+        return "user";
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUserType() {
+        return userType;
+    }
+
+    @Override
+    public Collection<? extends GrantedAuthority> getAuthorities() {
+        return authorities;
+    }
+
+    @Override
+    public String getPassword() {
+        return "";
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public boolean isAccountNonExpired() {
+        return true;
+    }
+
+    @Override
+    public boolean isAccountNonLocked() {
+        return true;
+    }
+
+    @Override
+    public boolean isCredentialsNonExpired() {
+        return true;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+}
@@ -0,0 +1,16 @@
+package it.polito.ai.virtualLabs.security;
+
+public class PasswordHashingRejectedException extends RuntimeException {
+    private static final long serialVersionUID = 3318072641650923571L;
+
+    private final int retryAfterSeconds;
+
+    public PasswordHashingRejectedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,160 @@
+package it.polito.ai.virtualLabs.security;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Limits the requests every client can make to the public routes, before they reach Spring
+ * Security. Each route is given as "pattern=requests/seconds": a client may send a burst of
+ * that many requests, then one more every seconds/requests. The first matching route applies.
+ * Every client and route pair has a token bucket kept as a single theoretical arrival time
+ * updated with compare-and-set, so no request ever waits for a lock. Past the maximum number of
+ * buckets the coldest ones are dropped: first the full ones, which lose nothing, then the ones
+ * closest to being full.
+ * A client is its remote address. When that address matches the trusted proxies pattern, the
+ * client is the rightmost X-Forwarded-For entry that is not a trusted proxy itself, so users behind
+ * the same proxy do not share a bucket while a client cannot choose its own key by forging the header.
+ */
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    private final List<Route> routes = new ArrayList<>();
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final Pattern trustedProxies;
+    private final int maxBuckets;
+
+    public RateLimitFilter(String routes, String trustedProxies, int maxBuckets) {
+        this.trustedProxies = trustedProxies.isEmpty() ? null : Pattern.compile(trustedProxies);
+        this.maxBuckets = maxBuckets;
+        for(String route : routes.split(",")) {
+            if(route.trim().isEmpty())
+                continue;
+            String[] patternAndLimit = route.trim().split("=");
+            String[] limit = patternAndLimit[1].split("/");
+            this.routes.add(new Route(patternAndLimit[0], Integer.parseInt(limit[0]), Integer.parseInt(limit[1])));
+        }
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        Route route = routes.stream()
+                .filter(r -> pathMatcher.match(r.pattern, path))
+                .findFirst()
+                .orElse(null);
+        if(route == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        Bucket bucket = buckets.computeIfAbsent(route.pattern + "|" + clientOf(request), k -> new Bucket(route));
+        if(buckets.size() > maxBuckets)
+            evictColdBuckets();
+
+        long waitNanos = bucket.tryAcquire(System.nanoTime());
+        if(waitNanos > 0) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos))));
+            response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), "Too many requests");
+            return;
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    private String clientOf(HttpServletRequest request) {
+        String client = request.getRemoteAddr();
+        String forwardedFor = request.getHeader("X-Forwarded-For");
+        if(forwardedFor == null || !isTrustedProxy(client))
+            return client;
+
+        //each proxy appends the address it received the request from: walk back to the first untrusted one
+        String[] hops = forwardedFor.split(",");
+        for(int i = hops.length - 1; i >= 0; i--) {
+            String hop = hops[i].trim();
+            if(hop.isEmpty())
+                continue;
+            client = hop;
+            if(!isTrustedProxy(hop))
+                break;
+        }
+        return client;
+    }
+
+    private boolean isTrustedProxy(String address) {
+        return trustedProxies != null && trustedProxies.matcher(address).matches();
+    }
+
+    private void evictColdBuckets() {
+        //a single request thread evicts, the others go on
+        if(!evicting.compareAndSet(false, true))
+            return;
+        try {
+            long now = System.nanoTime();
+            int target = maxBuckets - maxBuckets / 10;
+            for(int pass = 0; pass <= 4 && buckets.size() > target; pass++) {
+                //each pass also drops the buckets that will be full within a larger share of their burst
+                Iterator<Bucket> iterator = buckets.values().iterator();
+                while(iterator.hasNext() && buckets.size() > target) {
+                    Bucket bucket = iterator.next();
+                    if(bucket.arrival.get() - now <= bucket.route.burstNanos * pass / 4)
+                        iterator.remove();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static class Route {
+        private final String pattern;
+        private final long intervalNanos;
+        private final long burstNanos;
+
+        private Route(String pattern, int requests, int seconds) {
+            this.pattern = pattern;
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(seconds) / requests;
+            this.burstNanos = intervalNanos * (requests - 1);
+        }
+    }
+
+    private static class Bucket {
+        private final Route route;
+        // time at which the bucket is full again, one interval later for every request taken
+        private final AtomicLong arrival;
+
+        private Bucket(Route route) {
+            this.route = route;
+            this.arrival = new AtomicLong(System.nanoTime());
+        }
+
+        // 0 if the request can go on, otherwise the nanoseconds to wait for the next token
+        private long tryAcquire(long now) {
+            while(true) {
+                long current = arrival.get();
+                long earliest = current - route.burstNanos;
+                if(now - earliest < 0)
+                    return earliest - now;
+                if(arrival.compareAndSet(current, Math.max(current, now) + route.intervalNanos))
+                    return 0;
+            }
+        }
+    }
+}
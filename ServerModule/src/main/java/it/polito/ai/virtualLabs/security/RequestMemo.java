@@ -0,0 +1,97 @@
+package it.polito.ai.virtualLabs.security;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Outcomes of authorization checks and lookups already done while serving the current request,
+ * so that the service methods called by the same request do not repeat them. Outside of a request
+ * nothing is remembered. The number of repeated lookups answered from the memo is returned in the
+ * X-Memo-Hits response header and summed up in a global counter.
+ */
+@Component
+public class RequestMemo {
+
+    public static final String HITS_HEADER = "X-Memo-Hits";
+
+    private static final String ATTRIBUTE = RequestMemo.class.getName();
+
+    private final AtomicLong eliminatedDuplicates = new AtomicLong();
+
+    // runs the check only the first time for the key, a failed check is failed again with the same exception
+    public void check(String key, Runnable check) {
+        RuntimeException failure = get(key, () -> {
+            try {
+                check.run();
+                return null;
+            } catch (RuntimeException ex) {
+                return ex;
+            }
+        });
+        if(failure != null)
+            throw failure;
+    }
+
+    public <T> T get(String key, Supplier<T> lookup) {
+        Memo memo = currentMemo();
+        if(memo == null)
+            return lookup.get();
+
+        if(memo.values.containsKey(key)) {
+            memo.hits++;
+            eliminatedDuplicates.incrementAndGet();
+            HttpServletResponse response = memo.attributes.getResponse();
+            if(response != null && !response.isCommitted())
+                response.setIntHeader(HITS_HEADER, memo.hits);
+            @SuppressWarnings("unchecked")
+            T value = (T) memo.values.get(key);
+            return value;
+        }
+
+        T value = lookup.get();
+        memo.values.put(key, value);
+        return value;
+    }
+
+    // forgets everything remembered by the current request, after changes that may affect it
+    public void clear() {
+        Memo memo = currentMemo();
+        if(memo != null)
+            memo.values.clear();
+    }
+
+    public long getEliminatedDuplicates() {
+        return eliminatedDuplicates.get();
+    }
+
+    private Memo currentMemo() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if(!(attributes instanceof ServletRequestAttributes))
+            return null;
+
+        Memo memo = (Memo) attributes.getAttribute(ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if(memo == null) {
+            memo = new Memo((ServletRequestAttributes) attributes);
+            attributes.setAttribute(ATTRIBUTE, memo, RequestAttributes.SCOPE_REQUEST);
+        }
+        return memo;
+    }
+
+    private static class Memo {
+        private final ServletRequestAttributes attributes;
+        private final Map<String, Object> values = new HashMap<>();
+        private int hits = 0;
+
+        private Memo(ServletRequestAttributes attributes) {
+            this.attributes = attributes;
+        }
+    }
+}
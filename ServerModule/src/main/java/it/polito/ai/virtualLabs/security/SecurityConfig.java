@@ -1,6 +1,7 @@
 package it.polito.ai.virtualLabs.security;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.authentication.AuthenticationManager;
@@ -8,7 +9,6 @@ import org.springframework.security.config.annotation.method.configuration.Enabl
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.config.http.SessionCreationPolicy;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
@@ -21,9 +21,20 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
     @Autowired
     JwtTokenProvider jwtTokenProvider;
 
-    @Bean
+    @Value("${virtuallabs.password.strength:10}")
+    int passwordStrength;
+    @Value("${virtuallabs.password.threads:0}")
+    int passwordThreads;
+    @Value("${virtuallabs.password.queue-capacity:64}")
+    int passwordQueueCapacity;
+    @Value("${virtuallabs.password.retry-after-seconds:2}")
+    int passwordRetryAfterSeconds;
+
+    @Bean(destroyMethod = "shutdown")
     public PasswordEncoder passwordEncoder() {
-        return new BCryptPasswordEncoder();
+        //by default one hashing thread per core, leaving the request threads free for everything else
+        int threads = passwordThreads > 0 ? passwordThreads : Runtime.getRuntime().availableProcessors();
+        return new BoundedPasswordEncoder(passwordStrength, threads, passwordQueueCapacity, passwordRetryAfterSeconds);
     }
 
     @Bean
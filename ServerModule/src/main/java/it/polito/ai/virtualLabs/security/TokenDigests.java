@@ -0,0 +1,29 @@
+package it.polito.ai.virtualLabs.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * SHA-256 digests of the tokens that are looked up but must not be kept in clear, either in the
+ * database or in memory.
+ */
+public final class TokenDigests {
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private TokenDigests() {
+    }
+
+    // url-safe and unpadded, the digests of stored tokens must keep this format
+    public static String sha256(String token) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(SHA_256.get().digest(token.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,55 @@
+package it.polito.ai.virtualLabs.security;
+
+import io.jsonwebtoken.Claims;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Claims of the tokens whose signature has already been verified, keyed by the SHA-256 digest of
+ * the token so that the tokens themselves are not kept in memory. An entry is dropped when it is
+ * found expired and, once the cache is full, the least recently used one makes room for a new one.
+ */
+@Component
+public class VerifiedTokenCache {
+
+    @Value("${security.jwt.verified-cache.max-size:10000}")
+    private int maxSize = 10000;
+
+    private final Map<String, VerifiedToken> tokens = Collections.synchronizedMap(
+            new LinkedHashMap<String, VerifiedToken>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, VerifiedToken> eldest) {
+                    return size() > maxSize;
+                }
+            });
+    public Claims get(String digest) {
+        VerifiedToken entry = tokens.get(digest);
+        if(entry == null)
+            return null;
+        if(entry.expiration <= System.currentTimeMillis()) {
+            tokens.remove(digest, entry);
+            return null;
+        }
+        return entry.claims;
+    }
+
+    public void put(String digest, Claims claims) {
+        if(claims.getExpiration() == null)
+            return;
+        tokens.put(digest, new VerifiedToken(claims, claims.getExpiration().getTime()));
+    }
+
+    private static class VerifiedToken {
+        private final Claims claims;
+        private final long expiration;
+
+        private VerifiedToken(Claims claims, long expiration) {
+            this.claims = claims;
+            this.expiration = expiration;
+        }
+    }
+}
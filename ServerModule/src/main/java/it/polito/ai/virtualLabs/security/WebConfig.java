@@ -1,6 +1,10 @@
 package it.polito.ai.virtualLabs.security;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
@@ -9,6 +13,22 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 @EnableWebMvc
 public class WebConfig implements WebMvcConfigurer {
 
+    @Value("${virtuallabs.rate-limit.routes:/auth/login=10/60,/auth/signup=5/300,/auth/**=60/60,/notification/**=30/60}")
+    String rateLimitRoutes;
+    // regex of the reverse proxies whose X-Forwarded-For is trusted, none by default
+    @Value("${virtuallabs.rate-limit.trusted-proxies:}")
+    String rateLimitTrustedProxies;
+    @Value("${virtuallabs.rate-limit.max-buckets:100000}")
+    int rateLimitMaxBuckets;
+
+    // ahead of every other filter, Spring Security included
+    @Bean
+    public FilterRegistrationBean<RateLimitFilter> rateLimitFilter() {
+        FilterRegistrationBean<RateLimitFilter> registration = new FilterRegistrationBean<>(new RateLimitFilter(rateLimitRoutes, rateLimitTrustedProxies, rateLimitMaxBuckets));
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+        return registration;
+    }
+
     @Override
     public void addCorsMappings(CorsRegistry registry) {
         registry.addMapping("/**")
@@ -16,7 +16,7 @@ public interface AuthService {
     boolean completeRegistration(String token);
     String assignRefreshToken(String username, boolean logging);
     String assignAuthToken(String username);
-    boolean isRefreshTokenExpired(String token);
+    Optional<String> getRefreshTokenUsername(String token);
     Map<String, String> assignToken(String username, boolean logging);
     void checkAuthorizationForCourse(String courseName);
     void checkAuthorizationForStudentInfo(String studentId);
@@ -3,10 +3,16 @@ package it.polito.ai.virtualLabs.services;
 import it.polito.ai.virtualLabs.dtos.UserDTO;
 import it.polito.ai.virtualLabs.entities.*;
 import it.polito.ai.virtualLabs.repositories.*;
+import it.polito.ai.virtualLabs.security.AuthorizationIndex;
+import it.polito.ai.virtualLabs.security.JwtPrincipalCache;
 import it.polito.ai.virtualLabs.security.JwtTokenProvider;
+import it.polito.ai.virtualLabs.security.JwtUserPrincipal;
+import it.polito.ai.virtualLabs.security.RequestMemo;
+import it.polito.ai.virtualLabs.security.TokenDigests;
 import it.polito.ai.virtualLabs.services.exceptions.professor.ProfessorPrivacyException;
 import it.polito.ai.virtualLabs.services.exceptions.student.StudentPrivacyException;
 import it.polito.ai.virtualLabs.services.exceptions.team.TokenNotFoundException;
+import it.polito.ai.virtualLabs.services.vm.TransactionActions;
 import org.modelmapper.ModelMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -34,6 +40,12 @@ public class AuthServiceImpl implements AuthService {
     @Autowired
     JwtTokenProvider jwtTokenProvider;
     @Autowired
+    JwtPrincipalCache jwtPrincipalCache;
+    @Autowired
+    AuthorizationIndex authorizationIndex;
+    @Autowired
+    RequestMemo requestMemo;
+    @Autowired
     PasswordEncoder passwordEncoder;
     @Autowired
     UserRepository userRepository;
@@ -74,7 +86,7 @@ public class AuthServiceImpl implements AuthService {
 
         // create registration token
         RegistrationToken registrationToken = new RegistrationToken();
-        registrationToken.setToken(token);
+        registrationToken.setToken(TokenDigests.sha256(token));
         registrationToken.setExpiration(LocalDateTime.now().plusDays(REGISTRATION_EXPIRATION_DAYS));
         registrationToken.setUser(user);
         tokenRepository.saveAndFlush(registrationToken);
@@ -84,12 +96,15 @@ public class AuthServiceImpl implements AuthService {
 
     @Override
     public void setNewPassword(String id, String password) {
-        userRepository.getOne(id).setPassword(this.passwordEncoder.encode(password));
+        User user = userRepository.getOne(id);
+        user.setPassword(this.passwordEncoder.encode(password));
+        invalidatePrincipal(user.getUsername());
     }
 
     @Override
     public boolean completeRegistration(String token) {
-        Optional<RegistrationToken> tokenOpt = this.tokenRepository.findRegistrationToken(token);
+        String digest = TokenDigests.sha256(token);
+        Optional<RegistrationToken> tokenOpt = this.tokenRepository.findRegistrationToken(digest);
         if(!tokenOpt.isPresent())
             return false;
 
@@ -97,7 +112,7 @@ public class AuthServiceImpl implements AuthService {
 
         // check if token is expired
         if(registrationToken.getExpiration().isBefore(LocalDateTime.now())) {
-            tokenRepository.deleteById(token);
+            tokenRepository.deleteById(digest);
             tokenRepository.flush();
             return false;
         }
@@ -105,79 +120,67 @@ public class AuthServiceImpl implements AuthService {
         // set user as registered
         User user = userRepository.getOne(registrationToken.getUser().getId());
         user.setRegistered(true);
+        invalidatePrincipal(user.getUsername());
 
         // delete registration token
-        tokenRepository.deleteById(token);
+        tokenRepository.deleteById(digest);
         tokenRepository.flush();
         return true;
     }
 
+    // tokens issued before the change are checked against the database once it is committed
+    private void invalidatePrincipal(String username) {
+        TransactionActions.afterCommit(() -> jwtPrincipalCache.invalidate(username));
+    }
+
     @Override
     public String assignRefreshToken(String username, boolean logging) {
+        // only the digest of a refresh token is stored, so it can be handed out only when it is created
+        if(!logging)
+            return null;
+
         Optional<User> userOpt = userRepository.findByUsername(username);
         if(!userOpt.isPresent())
             throw new UsernameNotFoundException("Username '" + username + "' not found");
 
         User user = userOpt.get();
-        Optional<RefreshToken> tokenOpt = tokenRepository.findRefreshTokenByUserId(user.getId());
-
-        String returnToken;
-        if(logging) {
-            // remove token if it is already present
-            tokenOpt.ifPresent(refreshToken -> tokenRepository.deleteById(refreshToken.getToken()));
-
-            // create refresh token
-            RefreshToken refreshToken = new RefreshToken();
-            returnToken = hashToken(username);
-            refreshToken.setToken(returnToken);
-            refreshToken.setExpiration(LocalDateTime.now().plusDays(REFRESH_EXPIRATION_DAYS));
-            refreshToken.setUser(user);
-            tokenRepository.saveAndFlush(refreshToken);
-        } else {
-            returnToken = tokenOpt.get().getToken();
-        }
+
+        // remove token if it is already present
+        tokenRepository.findRefreshTokenByUserId(user.getId())
+                .ifPresent(refreshToken -> tokenRepository.deleteById(refreshToken.getToken()));
+
+        // create refresh token
+        String returnToken = hashToken(username);
+        RefreshToken refreshToken = new RefreshToken();
+        refreshToken.setToken(TokenDigests.sha256(returnToken));
+        refreshToken.setExpiration(LocalDateTime.now().plusDays(REFRESH_EXPIRATION_DAYS));
+        refreshToken.setUser(user);
+        tokenRepository.saveAndFlush(refreshToken);
 
         return returnToken;
     }
 
     @Override
     public String assignAuthToken(String username) {
-        return jwtTokenProvider.createToken(
-                username, this.userRepository.findByUsernameAndRegisteredTrue(username).orElseThrow(() ->
-                        new UsernameNotFoundException("Username " + username + "not found")).getRoles());
+        return jwtTokenProvider.createToken(this.userRepository.findByUsernameAndRegisteredTrue(username).orElseThrow(() ->
+                        new UsernameNotFoundException("Username " + username + "not found")));
     }
 
     @Override
-    public boolean isRefreshTokenExpired(String token) {
-        String decodedToken = new String(Base64.getDecoder().decode(token));
-
-        // check if token has a valid format
-        //TODO refresh token regex
-        Pattern pattern = Pattern.compile("[A-Fa-f0-9]{16}\\|((([s]\\d{6}[@]studenti[.])|([d]\\d{6}[@]))polito[.]it)");
-        //Pattern pattern = Pattern.compile("[\\s\\S]*");
-        Matcher matcher = pattern.matcher(decodedToken);
-        if(!matcher.find())
-            throw new IllegalStateException("Invalid token format");
-
-        // check if decoded username is valid
-        String decodedUsername = decodedToken.split("\\|")[1];
-        Optional<User> userOpt = userRepository.findByUsernameAndRegisteredTrue(decodedUsername);
-        if(!userOpt.isPresent())
-            throw new UsernameNotFoundException("Username '" + decodedUsername + "' was not found");
-
-        // check if refresh token exists
-        User user = userOpt.get();
-        Optional<RefreshToken> refreshTokenOpt =  tokenRepository.findRefreshTokenByUserId(user.getId());
+    public Optional<String> getRefreshTokenUsername(String token) {
+        // a token is valid only if its digest was stored for a registered user
+        Optional<RefreshToken> refreshTokenOpt = tokenRepository.findRefreshTokenWithUser(TokenDigests.sha256(token));
         if(!refreshTokenOpt.isPresent())
             throw new TokenNotFoundException("Token not found");
 
-        // check if token is valid
         RefreshToken refreshToken = refreshTokenOpt.get();
-        if(!refreshToken.getToken().equals(token))
-            throw new IllegalStateException("Invalid provided token");
+        if(!refreshToken.getUser().isRegistered())
+            throw new UsernameNotFoundException("Username '" + refreshToken.getUser().getUsername() + "' was not found");
 
-        // return false if token is expired, true otherwise
-        return refreshToken.getExpiration().isBefore(LocalDateTime.now());
+        // the username of the owner, empty if the token is expired
+        if(refreshToken.getExpiration().isBefore(LocalDateTime.now()))
+            return Optional.empty();
+        return Optional.of(refreshToken.getUser().getUsername());
     }
 
     @Override
@@ -197,21 +200,20 @@ public class AuthServiceImpl implements AuthService {
 
     @Override
     public void checkAuthorizationForCourse(String courseName) {
-        Course course = courseRepository.getOne(courseName);
+        requestMemo.check("course:" + courseName, () -> authorizeCourse(courseName));
+    }
+
+    private void authorizeCourse(String courseName) {
         UserDetails userDetails = (UserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
         userDetails.getAuthorities().forEach(role -> {
             if(role.getAuthority().equals("ROLE_STUDENT")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(s -> {
-                    Student student = (Student)s;
-                    if(!student.getCourses().contains(course))
+                getUserId(userDetails).ifPresent(studentId -> {
+                    if(!authorizationIndex.isEnrolled(studentId, courseName))
                         throw new StudentPrivacyException("This student does not have permission to view the information relating to the course named " + courseName);
                 });
             } else if(role.getAuthority().equals("ROLE_PROFESSOR")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(p -> {
-                    Professor professor = (Professor)p;
-                    if(!professor.getCourses().contains(course))
+                getUserId(userDetails).ifPresent(professorId -> {
+                    if(!authorizationIndex.teaches(professorId, courseName))
                         throw new ProfessorPrivacyException("This professor does not have permission to view the information relating to the course named " + courseName);
                 });
             }
@@ -220,32 +222,20 @@ public class AuthServiceImpl implements AuthService {
 
     @Override
     public void checkAuthorizationForStudentInfo(String studentId) {
+        requestMemo.check("student:" + studentId, () -> authorizeStudentInfo(studentId));
+    }
+
+    private void authorizeStudentInfo(String studentId) {
         UserDetails userDetails = (UserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
         userDetails.getAuthorities().forEach(role -> {
             if(role.getAuthority().equals("ROLE_STUDENT")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(s -> {
-                    Student me = (Student)s;
-                    if(!me.getCourses()
-                            .stream()
-                            .flatMap(course -> course.getStudents()
-                                    .stream()
-                                    .map(Student::getId))
-                            .collect(Collectors.toList())
-                            .contains(studentId))
+                getUserId(userDetails).ifPresent(myId -> {
+                    if(!authorizationIndex.sharesCourse(myId, studentId))
                         throw new StudentPrivacyException("This student does not have permission to view the information relating to the student with id " + studentId);
                 });
             } else if(role.getAuthority().equals("ROLE_PROFESSOR")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(p -> {
-                    Professor me = (Professor)p;
-                    if(!me.getCourses()
-                            .stream()
-                            .flatMap(course -> course.getStudents()
-                                    .stream()
-                                    .map(Student::getId))
-                            .collect(Collectors.toList())
-                            .contains(studentId))
+                getUserId(userDetails).ifPresent(myId -> {
+                    if(!authorizationIndex.teachesStudent(myId, studentId))
                         throw new ProfessorPrivacyException("This professor does not have permission to view the information relating to the student with id " + studentId);
                 });
             }
@@ -254,21 +244,22 @@ public class AuthServiceImpl implements AuthService {
 
     @Override
     public void checkAuthorizationForReport(Long reportId) {
-        Report report = reportRepository.getOne(reportId);
+        requestMemo.check("report:" + reportId, () -> authorizeReport(reportId));
+    }
+
+    private void authorizeReport(Long reportId) {
         UserDetails userDetails = (UserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
         userDetails.getAuthorities().forEach(role -> {
             if(role.getAuthority().equals("ROLE_STUDENT")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(s -> {
-                    Student student = (Student)s;
-                    if(!student.getReports().contains(report))
+                getUserId(userDetails).ifPresent(studentId -> {
+                    Report report = reportRepository.getOne(reportId);
+                    if(!report.getOwner().getId().equals(studentId))
                         throw new StudentPrivacyException("This student does not have permission to view the information relating to the report with id " + reportId);
                 });
             } else if(role.getAuthority().equals("ROLE_PROFESSOR")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(p -> {
-                    Professor professor = (Professor)p;
-                    if(!report.getAssignment().getCourse().getProfessors().contains(professor))
+                getUserId(userDetails).ifPresent(professorId -> {
+                    Report report = reportRepository.getOne(reportId);
+                    if(!authorizationIndex.teaches(professorId, report.getAssignment().getCourse().getName()))
                         throw new ProfessorPrivacyException("This professor does not have permission to view the information relating to the report with id " + reportId);
                 });
             }
@@ -277,23 +268,26 @@ public class AuthServiceImpl implements AuthService {
 
     @Override
     public void checkAuthorizationForVm(Long vmId, boolean mustBeOwner) {
-        Vm vm = vmRepository.getOne(vmId);
+        requestMemo.check("vm:" + vmId + ":" + mustBeOwner, () -> authorizeVm(vmId, mustBeOwner));
+    }
+
+    private void authorizeVm(Long vmId, boolean mustBeOwner) {
         UserDetails userDetails = (UserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
         userDetails.getAuthorities().forEach(role -> {
             if(role.getAuthority().equals("ROLE_STUDENT")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(s -> {
-                    Student student = (Student)s;
-                    if((mustBeOwner && !vm.getOwners().stream().map(Student::getId).collect(Collectors.toList()).contains(student.getId())) ||
-                            (!mustBeOwner && !student.getTeams().contains(vm.getTeam())))
+                getUserId(userDetails).ifPresent(studentId -> {
+                    if((mustBeOwner && !authorizationIndex.isVmOwner(studentId, vmId)) ||
+                            (!mustBeOwner && !authorizationIndex.getVmTeam(vmId)
+                                    .map(teamId -> authorizationIndex.isTeamMember(studentId, teamId))
+                                    .orElse(false)))
                         throw new StudentPrivacyException("This student does not have permission to view the information relating to the vm with id " + vmId);
                 });
             } else if(role.getAuthority().equals("ROLE_PROFESSOR")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(p -> {
-                    Professor professor = (Professor)p;
-                    List<Team> teams = professor.getCourses().stream().flatMap(course -> course.getTeams().stream()).collect(Collectors.toList());
-                    if(!teams.contains(vm.getTeam()))
+                getUserId(userDetails).ifPresent(professorId -> {
+                    if(!authorizationIndex.getVmTeam(vmId)
+                            .flatMap(authorizationIndex::getTeamCourse)
+                            .map(courseName -> authorizationIndex.teaches(professorId, courseName))
+                            .orElse(false))
                         throw new ProfessorPrivacyException("This professor does not have permission to view the information relating to the vm with id " + vmId);
                 });
             }
@@ -307,32 +301,20 @@ public class AuthServiceImpl implements AuthService {
 
     @Override
     public void checkAuthorizationForTeamProposalMembers(String studentId) {
+        requestMemo.check("proposal-member:" + studentId, () -> authorizeTeamProposalMembers(studentId));
+    }
+
+    private void authorizeTeamProposalMembers(String studentId) {
         UserDetails userDetails = (UserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
         userDetails.getAuthorities().forEach(role -> {
             if(role.getAuthority().equals("ROLE_STUDENT")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(s -> {
-                    Student student = (Student)s;
-                    List<String> memberIds = student.getTeamProposals()
-                            .stream()
-                            .flatMap(tp -> tp.getStudents()
-                                    .stream()
-                                    .map(Student::getId))
-                            .collect(Collectors.toList());
-                    if(!memberIds.contains(studentId))
+                getUserId(userDetails).ifPresent(myId -> {
+                    if(!authorizationIndex.sharesTeamProposal(myId, studentId))
                         throw new StudentPrivacyException("This student does not have permission to view the information relating to the student with id " + studentId);
                 });
             } else if(role.getAuthority().equals("ROLE_PROFESSOR")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(p -> {
-                    Professor professor = (Professor)p;
-                    List<String> studentIds = professor.getCourses()
-                            .stream()
-                            .flatMap(course -> course.getStudents()
-                                    .stream()
-                                    .map(Student::getId))
-                            .collect(Collectors.toList());
-                    if(!studentIds.contains(studentId))
+                getUserId(userDetails).ifPresent(professorId -> {
+                    if(!authorizationIndex.teachesStudent(professorId, studentId))
                         throw new ProfessorPrivacyException("This professor does not have permission to view the information relating to the student with id " + studentId);
                 });
             }
@@ -344,15 +326,13 @@ public class AuthServiceImpl implements AuthService {
         UserDetails userDetails = (UserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
         userDetails.getAuthorities().forEach(role -> {
             if(role.getAuthority().equals("ROLE_STUDENT")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(u -> {
-                    if(!u.getId().equals(userId))
+                getUserId(userDetails).ifPresent(id -> {
+                    if(!id.equals(userId))
                         throw new StudentPrivacyException("The student with id '" + userId + "' does not have permission to view this info");
                 });
             } else if(role.getAuthority().equals("ROLE_PROFESSOR")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(u -> {
-                    if(!u.getId().equals(userId))
+                getUserId(userDetails).ifPresent(id -> {
+                    if(!id.equals(userId))
                         throw new ProfessorPrivacyException("The professor with id '" + userId + "' does not have permission to view this info");
                 });
             }
@@ -379,23 +359,21 @@ public class AuthServiceImpl implements AuthService {
             if(role.getAuthority().equals("ROLE_STUDENT")) {
                 throw new StudentPrivacyException("The student does not have permission to send message");
             } else if(role.getAuthority().equals("ROLE_PROFESSOR")) {
-                Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
-                user.ifPresent(u -> {
-                    Professor professor = (Professor)u;
-                    boolean found = false;
-                    for(Course course : professor.getCourses()) {
-                        if(course.getStudents().stream().map(Student::getUsername).collect(Collectors.toList()).containsAll(to)) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    if(!found)
-                        throw new ProfessorPrivacyException("The professor with id '" + u.getId() + "' does not have permission to send message to these recipients");
+                getUserId(userDetails).ifPresent(professorId -> {
+                    if(!authorizationIndex.teachesAll(professorId, to))
+                        throw new ProfessorPrivacyException("The professor with id '" + professorId + "' does not have permission to send message to these recipients");
                 });
             }
         });
     }
 
+    // the id is carried by the token, other principals are resolved by username
+    private Optional<String> getUserId(UserDetails userDetails) {
+        if(userDetails instanceof JwtUserPrincipal)
+            return Optional.of(((JwtUserPrincipal) userDetails).getId());
+        return userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername()).map(User::getId);
+    }
+
     private String hashToken(String username) {
         String randomString = UUID.randomUUID().toString()+"|"+username;
         return Base64.getEncoder().withoutPadding().encodeToString(randomString.getBytes());
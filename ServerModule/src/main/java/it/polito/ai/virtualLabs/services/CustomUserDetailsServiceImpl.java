@@ -5,6 +5,7 @@ import it.polito.ai.virtualLabs.repositories.UserRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Primary;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsPasswordService;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.crypto.password.PasswordEncoder;
@@ -14,7 +15,7 @@ import java.util.Optional;
 
 @Primary
 @Component
-public class CustomUserDetailsServiceImpl implements UserDetailsService {
+public class CustomUserDetailsServiceImpl implements UserDetailsService, UserDetailsPasswordService {
 
     @Autowired
     private UserRepository userRepository;
@@ -38,4 +39,19 @@ public class CustomUserDetailsServiceImpl implements UserDetailsService {
                 .password(user.get().getPassword())
                 .roles(user.get().getRoles()).build();
     }
+
+    // called after a successful login when the stored hash was made with a different cost
+    @Override
+    public UserDetails updatePassword(UserDetails userDetails, String newPassword) {
+        Optional<User> user = userRepository.findByUsernameAndRegisteredTrue(userDetails.getUsername());
+        if(!user.isPresent())
+            return userDetails;
+
+        user.get().setPassword(newPassword);
+        userRepository.saveAndFlush(user.get());
+        return User.builder()
+                .username(user.get().getUsername())
+                .password(newPassword)
+                .roles(user.get().getRoles()).build();
+    }
 }
@@ -3,9 +3,13 @@ package it.polito.ai.virtualLabs.services;
 import it.polito.ai.virtualLabs.dtos.ProfessorDTO;
 import it.polito.ai.virtualLabs.entities.*;
 import it.polito.ai.virtualLabs.repositories.CourseRepository;
+import it.polito.ai.virtualLabs.repositories.EmailOutboxRepository;
+import it.polito.ai.virtualLabs.repositories.TeamProposalInvitationRepository;
 import it.polito.ai.virtualLabs.repositories.TeamProposalRepository;
 import it.polito.ai.virtualLabs.repositories.TeamRepository;
 import it.polito.ai.virtualLabs.repositories.UserRepository;
+import it.polito.ai.virtualLabs.security.AuthorizationIndex;
+import it.polito.ai.virtualLabs.security.TokenDigests;
 import it.polito.ai.virtualLabs.services.exceptions.course.CourseNotEnabledException;
 import it.polito.ai.virtualLabs.services.exceptions.course.CourseNotFoundException;
 import it.polito.ai.virtualLabs.services.exceptions.student.StudentAlreadyTeamedUpException;
@@ -13,16 +17,15 @@ import it.polito.ai.virtualLabs.services.exceptions.student.StudentNotEnrolledEx
 import it.polito.ai.virtualLabs.services.exceptions.student.StudentNotFoundException;
 import it.polito.ai.virtualLabs.services.exceptions.team.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.mail.MailException;
 import org.springframework.mail.SimpleMailMessage;
-import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Service;
 
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeMessage;
 import javax.transaction.Transactional;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -32,12 +35,14 @@ import java.util.stream.Collectors;
 public class NotificationServiceImpl implements NotificationService {
 
     @Autowired
-    JavaMailSender emailSender;
+    EmailOutboxRepository emailOutboxRepository;
     @Autowired
     TeamRepository teamRepository;
     @Autowired
     TeamProposalRepository teamProposalRepository;
     @Autowired
+    TeamProposalInvitationRepository invitationRepository;
+    @Autowired
     CourseRepository courseRepository;
     @Autowired
     UserRepository userRepository;
@@ -45,16 +50,31 @@ public class NotificationServiceImpl implements NotificationService {
     TeamService teamService;
     @Autowired
     AuthService authService;
+    @Autowired
+    AuthorizationIndex authorizationIndex;
+
+    @Value("${virtuallabs.mail.digest.enabled:false}")
+    private boolean digestEnabled = false;
+    @Value("${virtuallabs.mail.digest.window:600}")
+    private long digestWindowSeconds = 600;
 
     @Override
     public void sendMessage(String address, String subject, String body) throws MailException, MessagingException {
-        MimeMessage message = emailSender.createMimeMessage();
-        MimeMessageHelper helper = new MimeMessageHelper(message, "utf-8");
-        helper.setText(body, true);
-        helper.setTo(address);
-        helper.setSubject(subject);
+        // queued in the caller's transaction, the EmailDispatcher delivers it once committed
+        emailOutboxRepository.save(new EmailOutbox(address, subject, body));
+    }
 
-        emailSender.send(message);
+    // in digest mode the notification waits for the window and is merged with the other ones
+    // queued for the same recipient in the meantime
+    private void sendNotification(String address, String subject, String body) throws MailException, MessagingException {
+        if(!digestEnabled) {
+            sendMessage(address, subject, body);
+            return;
+        }
+        EmailOutbox email = new EmailOutbox(address, subject, body);
+        email.setDigest(true);
+        email.setNextAttemptAt(email.getCreatedAt().plusSeconds(digestWindowSeconds));
+        emailOutboxRepository.save(email);
     }
 
     @Override
@@ -66,7 +86,7 @@ public class NotificationServiceImpl implements NotificationService {
 
         for(String email : to) {
             if(userRepository.findStudentByUsername(email).isPresent())
-                sendMessage(email, subject, headerBody + body);
+                sendNotification(email, subject, headerBody + body);
             else
                 throw new StudentNotFoundException("The student with email '" + email + "' was not found in our system");
         }
@@ -76,12 +96,15 @@ public class NotificationServiceImpl implements NotificationService {
     public boolean acceptByToken(Long teamProposalId, String token) {
         if(!teamProposalRepository.existsById(teamProposalId))
             throw new TeamProposalNotFoundException("The proposal with id '" + teamProposalId + "' was not found");
-        Optional<Student> student = getStudentByToken(token);
-        if(!student.isPresent())
-            throw new StudentNotFoundException("The username inside the token '" + token + "' was not found");
+        Optional<TeamProposalInvitation> invitation = invitationRepository.findByProposalAndToken(teamProposalId, TokenDigests.sha256(token));
+        if(!invitation.isPresent())
+            throw new TokenNotFoundException("The token '" + token + "' was not found");
+        return accept(invitation.get());
+    }
 
+    private boolean accept(TeamProposalInvitation invitation) {
         //check if any of the students is already teamed up in another team
-        TeamProposal tp = teamProposalRepository.getOne(teamProposalId);
+        TeamProposal tp = invitation.getTeamProposal();
         for(Student s : tp.getStudents()) {
             for(Team t : s.getTeams()) {
                 if(t.getCourse().getName().equals(tp.getCourse().getName())) {
@@ -93,18 +116,18 @@ public class NotificationServiceImpl implements NotificationService {
         }
 
         //check the team proposal
-        if(!checkProposal(tp, token))
+        if(!checkProposal(tp, invitation))
             return false;
 
         // reject all the other pending proposals of this student
-        if(!rejectAllTeamProposalsExcept(tp.getId(), tp.getCourse().getName(), student.get().getId()))
+        if(!rejectAllTeamProposalsExcept(tp.getId(), tp.getCourse().getName(), invitation.getStudent().getId()))
             return false;
 
-        //remove token
-        tp.removeToken(token);
+        invitation.setStatus(TeamProposalInvitation.InvitationStatus.ACCEPTED);
+        invitationRepository.saveAndFlush(invitation);
 
         //check if ALL students have accepted the team proposal
-        if(tp.getTokens().size() == 0) {
+        if(invitationRepository.countByProposalAndStatus(tp.getId(), TeamProposalInvitation.InvitationStatus.PENDING) == 0) {
             tp.setStatus(TeamProposal.TeamProposalStatus.CONFIRMED);
             tp.setStatusDesc("All students accepted the proposal");
 
@@ -115,6 +138,8 @@ public class NotificationServiceImpl implements NotificationService {
             teamRepository.saveAndFlush(team);
             for(Student s : tp.getStudents())
                 s.addToTeam(team);
+            authorizationIndex.teamCreated(team.getId(), tp.getCourse().getName(),
+                    tp.getStudents().stream().map(Student::getId).collect(Collectors.toList()));
         } else
             tp.setStatusDesc("Other students must accept the proposal yet");
 
@@ -126,21 +151,25 @@ public class NotificationServiceImpl implements NotificationService {
     public boolean rejectByToken(Long teamProposalId, String token) {
         if(!teamProposalRepository.existsById(teamProposalId))
             throw new TeamProposalNotFoundException("The proposal with id '" + teamProposalId + "' was not found");
-        Optional<Student> student = getStudentByToken(token);
-        if(!student.isPresent())
-            throw new StudentNotFoundException("The username inside the token '" + token + "' was not found");
+        Optional<TeamProposalInvitation> invitation = invitationRepository.findByProposalAndToken(teamProposalId, TokenDigests.sha256(token));
+        if(!invitation.isPresent())
+            throw new TokenNotFoundException("The token '" + token + "' was not found");
+        return reject(invitation.get());
+    }
 
+    private boolean reject(TeamProposalInvitation invitation) {
         //check the team proposal
-        TeamProposal tp = teamProposalRepository.getOne(teamProposalId);
-        if(!checkProposal(tp, token))
+        TeamProposal tp = invitation.getTeamProposal();
+        if(!checkProposal(tp, invitation))
             return false;
 
-        //remove token
-        tp.getTokens().clear();
+        invitation.setStatus(TeamProposalInvitation.InvitationStatus.REJECTED);
+        invitationRepository.save(invitation);
 
         //reject the team proposal and add status description
+        Student student = invitation.getStudent();
         tp.setStatus(TeamProposal.TeamProposalStatus.REJECTED);
-        tp.setStatusDesc(student.get().getName() + " " + student.get().getSurname() + " rejected the proposal");
+        tp.setStatusDesc(student.getName() + " " + student.getSurname() + " rejected the proposal");
 
         teamProposalRepository.saveAndFlush(tp);
         return true;
@@ -149,58 +178,50 @@ public class NotificationServiceImpl implements NotificationService {
     @Override
     @PreAuthorize("hasRole('ROLE_STUDENT')")
     public boolean acceptById(Long teamProposalId, String studentId) {
-        String token = getTokenByStudentId(teamProposalId, studentId);
-        return token != null && acceptByToken(teamProposalId, token);
+        Optional<TeamProposalInvitation> invitation = invitationRepository.findByProposalAndStudent(teamProposalId, studentId);
+        return invitation.isPresent()
+                && invitation.get().getStatus() == TeamProposalInvitation.InvitationStatus.PENDING
+                && accept(invitation.get());
     }
 
     @Override
     @PreAuthorize("hasRole('ROLE_STUDENT')")
     public boolean rejectById(Long teamProposalId, String studentId) {
-        String token = getTokenByStudentId(teamProposalId, studentId);
-        return token != null && rejectByToken(teamProposalId, token);
+        Optional<TeamProposalInvitation> invitation = invitationRepository.findByProposalAndStudent(teamProposalId, studentId);
+        return invitation.isPresent()
+                && invitation.get().getStatus() == TeamProposalInvitation.InvitationStatus.PENDING
+                && reject(invitation.get());
     }
 
     @Override
     public void notifyTeam(Long teamProposalId, List<String> studentIds) throws MessagingException {
         TeamProposal proposal = teamProposalRepository.getOne(teamProposalId);
-        for(String id : studentIds) {
-            String username = userRepository.getStudentById(id).getUsername();
-            String token = hashToken(username);
+        for(Student student : userRepository.getStudentsByIds(studentIds)) {
+            String token = generateToken();
 
-            sendMessage(username, "VirtualLabs Invitation", calcBody(teamProposalId, token));
-            proposal.addToken(token);
+            sendNotification(student.getUsername(), "VirtualLabs Invitation", calcBody(teamProposalId, token));
+            proposal.addInvitation(new TeamProposalInvitation(proposal, student, TokenDigests.sha256(token)));
         }
     }
 
     private boolean rejectAllTeamProposalsExcept(Long teamProposalId, String courseName, String studentId) {
         // reject all that team proposals
-        for(Long proposalId : teamService.getPendingTeamProposalIdsForStudent(courseName, studentId)) {
-            if(!proposalId.equals(teamProposalId)) {
-                String token = getTokenByStudentId(proposalId, studentId);
-                if(token != null)
-                    if(!rejectByToken(proposalId, token))
-                        return false;
-            }
+        for(TeamProposalInvitation invitation : invitationRepository.getInvitationsToProposals(studentId, courseName, TeamProposal.TeamProposalStatus.PENDING)) {
+            if(!invitation.getTeamProposal().getId().equals(teamProposalId)
+                    && invitation.getStatus() == TeamProposalInvitation.InvitationStatus.PENDING)
+                if(!reject(invitation))
+                    return false;
         }
         return true;
     }
 
-    @Override
-    public String getTokenByStudentId(Long tpId, String studId) {
-        return teamProposalRepository.getOne(tpId).getTokens().stream().filter(t -> {
-            Optional<Student> s = getStudentByToken(t);
-            return s.isPresent() && s.get().getId().equals(studId);
-        }).findFirst().orElse(null);
-    }
-
-    private String hashToken(String username) {
-        String randomString = UUID.randomUUID().toString()+"|"+username;
-        return Base64.getEncoder().encodeToString(randomString.getBytes());
+    private String generateToken() {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
     }
 
-    private boolean checkProposal(TeamProposal tp, String token) {
+    private boolean checkProposal(TeamProposal tp, TeamProposalInvitation invitation) {
         //check if team proposal is already expired
-        if(tp.getExpiryDate().isBefore(LocalDateTime.now()))
+        if(tp.getStatus() == TeamProposal.TeamProposalStatus.EXPIRED || tp.getExpiryDate().isBefore(LocalDateTime.now()))
             return false;
 
         //check if team proposal was already accepted or rejected
@@ -229,14 +250,13 @@ public class NotificationServiceImpl implements NotificationService {
         for(String studentId : distinctStudentsId) {
             if(!userRepository.studentExistsById(studentId))
                 throw new StudentNotFoundException("The student with id '" + studentId + "' was not found");
-            Student student = userRepository.getStudentById(studentId);
-            if(!student.getCourses().contains(course))
+            if(!courseRepository.isStudentEnrolled(courseName, studentId))
                 throw new StudentNotEnrolledException("The student with id '" + studentId +"' is not enrolled to the course named '" + courseName +"'");
         }
 
-        //check if token exists
-        if(!tp.getTokens().contains(token))
-            throw new TokenNotFoundException("The token '" + token + "' was not found");
+        //check if the student has already answered
+        if(invitation.getStatus() != TeamProposalInvitation.InvitationStatus.PENDING)
+            throw new TokenNotFoundException("The invitation of the student with id '" + invitation.getStudent().getId() + "' was already answered");
 
         return true;
     }
@@ -251,10 +271,4 @@ public class NotificationServiceImpl implements NotificationService {
         String headerBody = "<h2><b>You have been invited on a team!</b></h2><br>";
         return headerBody + confirmBody + "<br><br>" + rejectBody;
     }
-
-    public Optional<Student> getStudentByToken(String token) {
-        String username = new String(Base64.getDecoder().decode(token)).split("\\|")[1];
-        Student s = userRepository.getStudentByUsername(username);
-        return s != null ? Optional.of(s) : Optional.empty();
-    }
 }
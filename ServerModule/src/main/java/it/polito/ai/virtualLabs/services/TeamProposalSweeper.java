@@ -0,0 +1,99 @@
+package it.polito.ai.virtualLabs.services;
+
+import it.polito.ai.virtualLabs.dtos.TeamProposalSweepMetricsDTO;
+import it.polito.ai.virtualLabs.entities.TeamProposal;
+import it.polito.ai.virtualLabs.repositories.TeamProposalInvitationRepository;
+import it.polito.ai.virtualLabs.repositories.TeamProposalRepository;
+import it.polito.ai.virtualLabs.security.AuthorizationIndex;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves the pending team proposals past their expiry date to EXPIRED and deletes the expired and
+ * rejected proposals older than the retention period, together with their members and
+ * invitations. Confirmed proposals are kept as the history of how the teams were formed.
+ * Both run a chunk of ids at a time with bulk statements, each in its own short transaction.
+ */
+@Component
+public class TeamProposalSweeper {
+
+    @Value("${virtuallabs.proposals.sweep-chunk-size:500}")
+    private int chunkSize = 500;
+    @Value("${virtuallabs.proposals.retention-days:30}")
+    private int retentionDays = 30;
+
+    @Autowired
+    TeamProposalRepository teamProposalRepository;
+    @Autowired
+    TeamProposalInvitationRepository invitationRepository;
+    @Autowired
+    AuthorizationIndex authorizationIndex;
+
+    private static final List<TeamProposal.TeamProposalStatus> PURGED_STATUSES =
+            Arrays.asList(TeamProposal.TeamProposalStatus.EXPIRED, TeamProposal.TeamProposalStatus.REJECTED);
+
+    private final AtomicLong expiredTotal = new AtomicLong();
+    private final AtomicLong purgedTotal = new AtomicLong();
+    private volatile LocalDateTime lastSweep;
+    private volatile int lastExpired;
+    private volatile int lastPurged;
+
+    @Scheduled(fixedDelayString = "${virtuallabs.proposals.sweep-interval:600000}")
+    public void sweep() {
+        LocalDateTime now = LocalDateTime.now();
+        int expired = expire(now);
+        int purged = purge(now.minusDays(retentionDays));
+
+        expiredTotal.addAndGet(expired);
+        purgedTotal.addAndGet(purged);
+        lastExpired = expired;
+        lastPurged = purged;
+        lastSweep = now;
+    }
+
+    int expire(LocalDateTime now) {
+        int count = 0;
+        List<Long> ids;
+        do {
+            ids = teamProposalRepository.getExpiredProposalIds(TeamProposal.TeamProposalStatus.PENDING, now, PageRequest.of(0, chunkSize));
+            if(!ids.isEmpty())
+                count += teamProposalRepository.updateStatus(ids, TeamProposal.TeamProposalStatus.EXPIRED,
+                        "The proposal expired before all students accepted it");
+        } while(ids.size() == chunkSize);
+        return count;
+    }
+
+    int purge(LocalDateTime before) {
+        int count = 0;
+        List<Long> ids;
+        do {
+            ids = teamProposalRepository.getProposalIdsExpiredBefore(PURGED_STATUSES, before, PageRequest.of(0, chunkSize));
+            if(!ids.isEmpty()) {
+                // children first: a chunk left halfway is completed by the next sweep
+                teamProposalRepository.deleteMembersOf(ids);
+                invitationRepository.deleteAllByProposalIdIn(ids);
+                count += teamProposalRepository.deleteAllByIdIn(ids);
+                authorizationIndex.teamProposalsRemoved(ids);
+            }
+        } while(ids.size() == chunkSize);
+        return count;
+    }
+
+    public TeamProposalSweepMetricsDTO getMetrics() {
+        TeamProposalSweepMetricsDTO metrics = new TeamProposalSweepMetricsDTO();
+        metrics.setLastSweep(lastSweep);
+        metrics.setLastExpired(lastExpired);
+        metrics.setLastPurged(lastPurged);
+        metrics.setExpiredTotal(expiredTotal.get());
+        metrics.setPurgedTotal(purgedTotal.get());
+        return metrics;
+    }
+}
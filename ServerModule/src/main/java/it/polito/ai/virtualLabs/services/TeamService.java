@@ -64,4 +64,5 @@ public interface TeamService {
     List<StudentDTO> getStudentsNotInCourse(String courseName);
     List<TeamProposalDTO> cleanTeamProposals(List<TeamProposalDTO> list);
     List<CourseDTO> enrichCourses(List<CourseDTO> courses);
+    TeamProposalSweepMetricsDTO getTeamProposalSweepMetrics();
 }
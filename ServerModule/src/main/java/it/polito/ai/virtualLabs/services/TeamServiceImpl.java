@@ -6,12 +6,17 @@ import it.polito.ai.virtualLabs.controllers.ModelHelper;
 import it.polito.ai.virtualLabs.dtos.*;
 import it.polito.ai.virtualLabs.entities.*;
 import it.polito.ai.virtualLabs.repositories.*;
+import it.polito.ai.virtualLabs.security.AuthorizationIndex;
 import it.polito.ai.virtualLabs.services.exceptions.course.CourseNotEnabledException;
 import it.polito.ai.virtualLabs.services.exceptions.course.CourseNotFoundException;
 import it.polito.ai.virtualLabs.services.exceptions.file.ParsingFileException;
 import it.polito.ai.virtualLabs.services.exceptions.professor.ProfessorNotFoundException;
 import it.polito.ai.virtualLabs.services.exceptions.student.*;
 import it.polito.ai.virtualLabs.services.exceptions.team.*;
+import it.polito.ai.virtualLabs.services.vm.TeamResourceLedger;
+import it.polito.ai.virtualLabs.services.vm.VmBulkPowerOff;
+import it.polito.ai.virtualLabs.services.vm.VmStateRegistry;
+import it.polito.ai.virtualLabs.services.vm.VmUtilisationMetrics;
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
 import org.modelmapper.ModelMapper;
@@ -55,6 +60,10 @@ public class TeamServiceImpl implements TeamService {
     @Autowired
     TeamProposalRepository teamProposalRepository;
     @Autowired
+    TeamProposalInvitationRepository invitationRepository;
+    @Autowired
+    TeamProposalSweeper teamProposalSweeper;
+    @Autowired
     TeamRepository teamRepository;
     @Autowired
     UserRepository userRepository;
@@ -71,7 +80,17 @@ public class TeamServiceImpl implements TeamService {
     @Autowired
     NotificationService notificationService;
     @Autowired
+    VmBulkPowerOff vmBulkPowerOff;
+    @Autowired
     ModelMapper modelMapper;
+    @Autowired
+    VmStateRegistry vmStateRegistry;
+    @Autowired
+    TeamResourceLedger teamResourceLedger;
+    @Autowired
+    VmUtilisationMetrics vmUtilisationMetrics;
+    @Autowired
+    AuthorizationIndex authorizationIndex;
 
     @Override
     @PreAuthorize("hasRole('ROLE_PROFESSOR')")
@@ -100,6 +119,7 @@ public class TeamServiceImpl implements TeamService {
         c.addProfessor(professor);
 
         courseRepository.saveAndFlush(c);
+        authorizationIndex.professorAdded(professor.getId(), c.getName());
         return true;
     }
 
@@ -238,14 +258,16 @@ public class TeamServiceImpl implements TeamService {
                 .collect(Collectors.toList());
     }
 
+    @Override
+    @PreAuthorize("hasRole('ROLE_PROFESSOR')")
+    public TeamProposalSweepMetricsDTO getTeamProposalSweepMetrics() {
+        return teamProposalSweeper.getMetrics();
+    }
+
     public List<TeamProposalDTO> cleanTeamProposals(List<TeamProposalDTO> list) {
-        for(TeamProposalDTO tp : list) {
-            if(tp.getExpiryDate().isBefore(LocalDateTime.now().minusDays(TEAM_PROPOSAL_EXPIRY_DAYS))) {
-                teamService.deleteTeamProposal(tp.getId());
-                tp.setId(null);
-            }
-        }
-        return list.stream().filter(tp -> tp.getId() != null).collect(Collectors.toList());
+        // the old proposals are deleted by the TeamProposalSweeper, until then they are just hidden
+        LocalDateTime oldest = LocalDateTime.now().minusDays(TEAM_PROPOSAL_EXPIRY_DAYS);
+        return list.stream().filter(tp -> !tp.getExpiryDate().isBefore(oldest)).collect(Collectors.toList());
     }
 
     @Override
@@ -273,16 +295,13 @@ public class TeamServiceImpl implements TeamService {
 
         authService.checkAuthorizationForCourse(courseName);
 
-        Course course = courseRepository.getOne(courseName);
-        Optional<Student> student = course.getStudents()
-                .stream()
-                .filter(s -> s.getId().equals(studentId))
-                .findFirst();
-        if(student.isPresent())
+        if(courseRepository.isStudentEnrolled(courseName, studentId))
             return false;
         else {
+            Course course = courseRepository.getOne(courseName);
             Student s = userRepository.getStudentById(studentId);
             course.addStudent(s);
+            authorizationIndex.studentEnrolled(studentId, s.getUsername(), courseName);
             return true;
         }
     }
@@ -299,6 +318,7 @@ public class TeamServiceImpl implements TeamService {
 
         Course course = courseRepository.getOne(courseName);
         course.removeStudent(userRepository.getStudentById(studentId));
+        authorizationIndex.studentUnenrolled(studentId, courseName);
     }
 
     @Override
@@ -316,8 +336,13 @@ public class TeamServiceImpl implements TeamService {
 
         if(team.isPresent()) {
             team.get().removeMember(student);
-            if(team.get().getStudents().isEmpty())
+            vmStateRegistry.evictTeam(team.get().getId());
+            authorizationIndex.invalidate();
+            if(team.get().getStudents().isEmpty()) {
                 this.teamRepository.delete(team.get());
+                teamResourceLedger.evictTeam(team.get().getId());
+                vmUtilisationMetrics.evictCourse(courseName);
+            }
         }
     }
 
@@ -331,16 +356,14 @@ public class TeamServiceImpl implements TeamService {
 
         authService.checkAuthorizationForCourse(courseName);
 
-        Course course = courseRepository.getOne(courseName);
-        Optional<Professor> professor = course.getProfessors()
-                .stream()
-                .filter(p -> p.getId().equals(professorId))
-                .findFirst();
-        if(professor.isPresent())
+        if(courseRepository.isProfessorTeaching(courseName, professorId))
             return false;
         else {
+            Course course = courseRepository.getOne(courseName);
             Professor p = userRepository.getProfessorById(professorId);
             course.addProfessor(p);
+            vmStateRegistry.evictCourse(courseName);
+            authorizationIndex.professorAdded(professorId, courseName);
             return true;
         }
     }
@@ -354,6 +377,8 @@ public class TeamServiceImpl implements TeamService {
 
         Course course = courseRepository.getOne(courseName);
         course.removeProfessor(userRepository.getProfessorById(professorId));
+        vmStateRegistry.evictCourse(courseName);
+        authorizationIndex.professorRemoved(professorId, courseName);
     }
 
     @Override
@@ -381,6 +406,9 @@ public class TeamServiceImpl implements TeamService {
             throw new CourseNotFoundException("The course named '" + courseName + "' was not found");
         Course c = courseRepository.getOne(courseName);
         c.setEnabled(false);
+
+        //power off all the vms of the course
+        vmBulkPowerOff.powerOff(vmRepository.getVmIdsByCourseName(courseName));
     }
 
     @Override
@@ -407,21 +435,27 @@ public class TeamServiceImpl implements TeamService {
         authService.checkAuthorizationForCourse(courseName);
 
         List<StudentDTO> studentsAdded = new ArrayList<>();
-        boolean warning = false;
+        List<String> distinctIds = studentIds.stream().distinct().collect(Collectors.toList());
 
-        for(String id : studentIds) {
-            try {
-                Optional<Student> studentOpt = userRepository.findStudentById(id);
-                if(studentOpt.isPresent() && studentOpt.get().isRegistered()) {
-                    boolean enrolled = addStudentToCourse(id, courseName);
-                    if(enrolled) {
-                        studentsAdded.add(getStudent(id).get());
-                    }
-                } else {
-                    warning = true;
-                }
-            } catch (StudentNotFoundException ex) {
-                warning = true;
+        // a fixed number of statements whatever the number of students: the unknown and not registered
+        // ones raise the warning, the ones already enrolled are skipped
+        List<Student> registered = distinctIds.isEmpty() ? new ArrayList<>() : userRepository.getStudentsByIds(distinctIds)
+                .stream()
+                .filter(Student::isRegistered)
+                .collect(Collectors.toList());
+        boolean warning = registered.size() < distinctIds.size();
+
+        Set<String> alreadyEnrolled = registered.isEmpty() ? new HashSet<>() : new HashSet<>(courseRepository
+                .getEnrolledStudentIds(courseName, registered.stream().map(Student::getId).collect(Collectors.toList())));
+        List<Student> toEnroll = registered.stream()
+                .filter(s -> !alreadyEnrolled.contains(s.getId()))
+                .collect(Collectors.toList());
+
+        if(!toEnroll.isEmpty()) {
+            courseRepository.enrollStudents(courseName, toEnroll.stream().map(Student::getId).collect(Collectors.toList()));
+            for(Student s : toEnroll) {
+                authorizationIndex.studentEnrolled(s.getId(), s.getUsername(), courseName);
+                studentsAdded.add(modelMapper.map(s, StudentDTO.class));
             }
         }
 
@@ -463,7 +497,7 @@ public class TeamServiceImpl implements TeamService {
                 studentsStatus.put(s.getId(), StudentStatus.UNREGISTERED.ordinal());
                 continue;
             }
-            if(student.getCourses().stream().map(Course::getName).collect(Collectors.toList()).contains(courseName)) {
+            if(courseRepository.isStudentEnrolled(courseName, student.getId())) {
                 studentsStatus.put(s.getId(), StudentStatus.ALREADY_ENROLLED.ordinal());
                 continue;
             }
@@ -567,10 +601,6 @@ public class TeamServiceImpl implements TeamService {
 
         authService.checkAuthorizationForCourse(courseName);
 
-        Optional<TeamProposal> oldProposal = teamProposalRepository.findByTeamNameAndCourseName(teamName, courseName);
-        if(oldProposal.isPresent() && oldProposal.get().getStatus() != TeamProposal.TeamProposalStatus.REJECTED)
-            throw new TeamAlreadyProposedException("The team '" + teamName + "' for the course named '" + courseName + "' has already a request in progress or accepted");
-
         Course course = courseRepository.getOne(courseName);
         if(!course.isEnabled())
             throw new CourseNotEnabledException("The course named '" + courseName + "' is not enabled");
@@ -579,38 +609,13 @@ public class TeamServiceImpl implements TeamService {
         if(!studentOpt.isPresent())
             throw new StudentNotFoundException("The student with username '" + creatorUsername + "' was not found");
 
-        Student me = studentOpt.get();
-
-        List<TeamProposal> ownPendingProposals = teamProposalRepository.findAllByCourseNameAndCreatorIdAndStatus(courseName, me.getId(), TeamProposal.TeamProposalStatus.PENDING);
-        if(!ownPendingProposals.isEmpty())
-            throw new TeamProposalAlreadyCreatedException("The student with id " + me.getId() + " has already proposed a team");
-
+        Student creator = studentOpt.get();
         List<String> distinctMembersIds = memberIds.stream().distinct().collect(Collectors.toList());
-        if(distinctMembersIds.size() < course.getMinTeamSize() && distinctMembersIds.size() > course.getMaxTeamSize())
-            throw new TeamConstraintsNotSatisfiedException("The team '" + teamName + "' does not respect cardinality constraints");
-
-        List<Student> students = new ArrayList<>();
-        for(String memberId : distinctMembersIds) {
-            if(!userRepository.studentExistsById(memberId))
-                throw new StudentNotFoundException("The student with id '" + memberId + "' was not found");
-
-            Student student = userRepository.getStudentById(memberId);
-            if(!student.getCourses().contains(course))
-                throw new StudentNotEnrolledException("The student with id '" + memberId + "' is not enrolled to the course named '" + courseName +"' ");
-
-            List<Team> studentTeams = student.getTeams();
-            for(Team t : studentTeams) {
-                if(t.getCourse().getName().equals(courseName))
-                    throw new StudentAlreadyTeamedUpException("The student with id '" + memberId + "' is already part of the group named '" + t.getName() + "'");
-            }
-
-            if(hasAcceptedProposals(memberId, courseName))
-                throw new TeamProposalAlreadyAcceptedException("The student with id " + memberId + " has already accepted a team proposal");
+        List<Student> students = distinctMembersIds.isEmpty() ? new ArrayList<>() : userRepository.getStudentsByIds(distinctMembersIds);
 
-            students.add(student); //this will be part of the team (if all the controls are verified)
-        }
-
-        Student creator = userRepository.getStudentByUsername(creatorUsername);
+        List<String> violations = validateProposal(course, teamName, creator, distinctMembersIds, students);
+        if(!violations.isEmpty())
+            throw new TeamProposalNotValidException(violations);
 
         // Create new team proposal
         TeamProposal proposal = new TeamProposal();
@@ -621,14 +626,14 @@ public class TeamServiceImpl implements TeamService {
         proposal.setExpiryDate(LocalDateTime.now().plusDays(PROPOSAL_EXPIRATION_DAYS));
         proposal.setCreatorId(creator.getId());
 
+        // only the owning side is set: filling Student.teamProposals would load it for every member
+        proposal.getStudents().addAll(students);
         teamProposalRepository.save(proposal);
-        for(Student s : students) {
-            s.addTeamProposal(proposal);
-        }
+        authorizationIndex.teamProposalCreated(proposal.getId(), distinctMembersIds);
 
         //send email to all members
         try {
-            notificationService.notifyTeam(proposal.getId(), memberIds);
+            notificationService.notifyTeam(proposal.getId(), distinctMembersIds);
         }
         catch (MessagingException e) {
             throw new MessagingException("Error on sending the email to the students");
@@ -638,6 +643,54 @@ public class TeamServiceImpl implements TeamService {
         return proposal.getId();
     }
 
+    // checks the whole proposal with a fixed number of queries, whatever the number of members,
+    // and returns every problem found instead of stopping at the first one
+    private List<String> validateProposal(Course course, String teamName, Student creator, List<String> memberIds, List<Student> members) {
+        String courseName = course.getName();
+        List<String> violations = new ArrayList<>();
+
+        Optional<TeamProposal> oldProposal = teamProposalRepository.findByTeamNameAndCourseName(teamName, courseName);
+        if(oldProposal.isPresent() && (oldProposal.get().getStatus() == TeamProposal.TeamProposalStatus.PENDING
+                || oldProposal.get().getStatus() == TeamProposal.TeamProposalStatus.CONFIRMED))
+            violations.add("The team '" + teamName + "' for the course named '" + courseName + "' has already a request in progress or accepted");
+        else if(teamRepository.existsByNameAndCourseName(teamName, courseName))
+            violations.add("The team '" + teamName + "' already exists in the course named '" + courseName + "'");
+
+        if(!teamProposalRepository.findAllByCourseNameAndCreatorIdAndStatus(courseName, creator.getId(), TeamProposal.TeamProposalStatus.PENDING).isEmpty())
+            violations.add("The student with id " + creator.getId() + " has already proposed a team");
+
+        if(memberIds.size() < course.getMinTeamSize() || memberIds.size() > course.getMaxTeamSize())
+            violations.add("The team '" + teamName + "' does not respect cardinality constraints");
+
+        // an empty IN list is not valid SQL everywhere
+        if(memberIds.isEmpty())
+            return violations;
+
+        Set<String> found = members.stream().map(Student::getId).collect(Collectors.toSet());
+        Set<String> enrolled = new HashSet<>(courseRepository.getEnrolledStudentIds(courseName, memberIds));
+        Map<String, String> teamNames = new HashMap<>();
+        for(Object[] row : teamRepository.getTeamNamesOfStudents(courseName, memberIds))
+            teamNames.put((String) row[0], (String) row[1]);
+        // a student has accepted a proposal when all their invitations to the open proposals are answered
+        Map<String, Boolean> pendingInvitations = new HashMap<>();
+        for(Object[] row : invitationRepository.getInvitationStatuses(memberIds, courseName, TeamProposal.TeamProposalStatus.PENDING))
+            pendingInvitations.merge((String) row[0], row[1] == TeamProposalInvitation.InvitationStatus.PENDING, Boolean::logicalOr);
+
+        for(String memberId : memberIds) {
+            if(!found.contains(memberId)) {
+                violations.add("The student with id '" + memberId + "' was not found");
+                continue;
+            }
+            if(!enrolled.contains(memberId))
+                violations.add("The student with id '" + memberId + "' is not enrolled to the course named '" + courseName + "'");
+            if(teamNames.containsKey(memberId))
+                violations.add("The student with id '" + memberId + "' is already part of the group named '" + teamNames.get(memberId) + "'");
+            if(Boolean.FALSE.equals(pendingInvitations.get(memberId)))
+                violations.add("The student with id " + memberId + " has already accepted a team proposal");
+        }
+        return violations;
+    }
+
     @Override
     @PreAuthorize("hasRole('ROLE_STUDENT')")
     public Optional<TeamProposalDTO> getTeamProposal(Long teamProposalId) {
@@ -738,17 +791,13 @@ public class TeamServiceImpl implements TeamService {
 
         authService.checkAuthorizationForCourse(courseName);
 
-        List<Long> teamProposalIds = getPendingTeamProposalIdsForStudent(courseName, studentId);
+        List<TeamProposalInvitation> invitations = invitationRepository
+                .getInvitationsToProposals(studentId, courseName, TeamProposal.TeamProposalStatus.PENDING);
 
-        if(teamProposalIds.isEmpty())
+        if(invitations.isEmpty())
             return false;
 
-        for (Long proposalId: teamProposalIds) {
-            String token = notificationService.getTokenByStudentId(proposalId, studentId);
-            if(token != null)
-                return false;
-        }
-        return true;
+        return invitations.stream().noneMatch(i -> i.getStatus() == TeamProposalInvitation.InvitationStatus.PENDING);
     }
 
     @Override
@@ -761,12 +810,9 @@ public class TeamServiceImpl implements TeamService {
 
         authService.checkAuthorizationForTeamProposalMembers(studentId);
 
-        List<String> tokensLeft = teamProposalRepository.getOne(teamProposalId).getTokens();
-
-        return tokensLeft
-                .stream()
-                .map(token -> this.notificationService.getStudentByToken(token))
-                .noneMatch(studentOpt -> studentOpt.isPresent() && studentOpt.get().getId().equals(studentId));
+        return invitationRepository.findByProposalAndStudent(teamProposalId, studentId)
+                .map(i -> i.getStatus() != TeamProposalInvitation.InvitationStatus.PENDING)
+                .orElse(true);
     }
 
     @Override
@@ -856,8 +902,12 @@ public class TeamServiceImpl implements TeamService {
                 userRepository.getProfessorById(prof.getId()).removeCourse(c));
         teamService.getEnrolledStudents(courseName).forEach(student ->
                 userRepository.getStudentById(student.getId()).removeCourse(c));
+        c.getTeams().forEach(t -> teamResourceLedger.evictTeam(t.getId()));
         courseRepository.deleteById(courseName);
         courseRepository.flush();
+        vmStateRegistry.evictCourse(courseName);
+        vmUtilisationMetrics.evictCourse(courseName);
+        authorizationIndex.invalidate();
 
         try {
             File infoToDelete = new File(RESOURCES_PATH + c.getName() + ".txt");
@@ -876,8 +926,13 @@ public class TeamServiceImpl implements TeamService {
 
         authService.checkAuthorizationForCourse(teamOpt.get().getCourse().getName());
 
+        String courseName = teamOpt.get().getCourse().getName();
         teamRepository.deleteById(teamId);
         teamRepository.flush();
+        vmStateRegistry.evictTeam(teamId);
+        teamResourceLedger.evictTeam(teamId);
+        vmUtilisationMetrics.evictCourse(courseName);
+        authorizationIndex.invalidate();
     }
 
     @Override
@@ -891,6 +946,7 @@ public class TeamServiceImpl implements TeamService {
         teamProposal.setCourse(null);
         teamProposalRepository.deleteById(teamProposalId);
         teamProposalRepository.flush();
+        authorizationIndex.teamProposalsRemoved(Collections.singletonList(teamProposalId));
     }
 
     @Override
@@ -903,7 +959,7 @@ public class TeamServiceImpl implements TeamService {
         return teamProposals
                 .stream()
                 .filter(prop ->
-                        prop.getStudents().stream().map(User::getId).collect(Collectors.toList()).contains(studentId))
+                        prop.getStudents().stream().anyMatch(s -> s.getId().equals(studentId)))
                 .map(TeamProposal::getId)
                 .collect(Collectors.toList());
     }
@@ -1,12 +1,17 @@
 package it.polito.ai.virtualLabs.services;
 
 import it.polito.ai.virtualLabs.dtos.*;
+import it.polito.ai.virtualLabs.entities.Vm;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public interface VmService {
     Optional<VmDTO> getVm(Long vmId);
+    Optional<Boolean> getVmPowerState(Long vmId);
     Optional<VmModelDTO> getVmModel(Long vmModelId);
     Optional<VmModelDTO> getVmModelForVm(Long vmId);
     Optional<StudentDTO> getCreator(Long vmId);
@@ -14,22 +19,36 @@ public interface VmService {
     Optional<TeamDTO> getTeam(Long vmId);
     List<VmModelDTO> getAllVmModels();
     List<VmDTO> getAllVms();
+    HostPoolMetricsDTO getHostPoolMetrics();
+    VmMetricsDTO getCourseVmMetrics(String courseName, int minutes);
+    List<VmUsageDTO> getCourseVmUsage(String courseName, LocalDateTime from, LocalDateTime to);
     Optional<VmModelDTO> getCourseVmModel(String courseName);
     Optional<CourseDTO> getVmModelCourse(Long vmModelId);
     Optional<ProfessorDTO> getVmModelProfessor(Long vmModelId);
     List<VmDTO> getVmModelVms(Long vmId);
     List<VmDTO> getCourseVms(String courseName);
     List<VmDTO> getTeamVms(Long teamId);
+    SseEmitter subscribeToTeamVmEvents(Long teamId);
     List<VmModelDTO> getProfessorVmModels(String professorId);
     List<AssignmentDTO> getProfessorAssignments(String professorId);
 
     Long createVm(VmDTO vmDTO, String studentId, Long teamId, boolean allOwners);
     void removeVm(Long vmId);
     boolean editVmResources(Long vmId, int vCPU, int ram, int disk);
-    boolean powerOnVm(Long vmId);
+    PowerOnResult powerOnVm(Long vmId);
+    boolean admitQueuedPowerOn(Long vmId);
     boolean powerOffVm(Long vmId);
+    void completeVmTransition(Long vmId, Vm.VmStatus from, boolean succeeded);
+    Map<Long, Boolean> powerOffTeamVms(Long teamId);
+    Map<Long, Boolean> powerOffCourseVms(String courseName);
     boolean setVmModelToCourse(VmModelDTO vmModelDTO, String courseName, String professorId);
     boolean editVmModelSettings(Long vmModelId, VmModelDTO vmModelDTO);
     void removeVmModel(Long vmModelId);
     void changeVmContentRandom(Long vmId);
+
+    enum PowerOnResult {
+        POWERED_ON,
+        QUEUED,
+        REJECTED,
+    }
 }
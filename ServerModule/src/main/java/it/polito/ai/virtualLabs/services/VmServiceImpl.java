@@ -3,24 +3,40 @@ package it.polito.ai.virtualLabs.services;
 import it.polito.ai.virtualLabs.dtos.*;
 import it.polito.ai.virtualLabs.entities.*;
 import it.polito.ai.virtualLabs.repositories.*;
+import it.polito.ai.virtualLabs.security.AuthorizationIndex;
+import it.polito.ai.virtualLabs.security.RequestMemo;
 import it.polito.ai.virtualLabs.services.exceptions.course.CourseNotFoundException;
 import it.polito.ai.virtualLabs.services.exceptions.professor.ProfessorNotFoundException;
+import it.polito.ai.virtualLabs.services.exceptions.professor.ProfessorPrivacyException;
 import it.polito.ai.virtualLabs.services.exceptions.student.StudentNotFoundException;
+import it.polito.ai.virtualLabs.services.exceptions.student.StudentPrivacyException;
 import it.polito.ai.virtualLabs.services.exceptions.team.TeamNotFoundException;
 import it.polito.ai.virtualLabs.services.exceptions.vm.VmIsActiveException;
 import it.polito.ai.virtualLabs.services.exceptions.vm.VmNotFoundException;
 import it.polito.ai.virtualLabs.services.exceptions.vmmodel.VmModelNotFoundException;
 import it.polito.ai.virtualLabs.services.exceptions.vmmodel.VmModelResourcesExceededException;
+import it.polito.ai.virtualLabs.services.vm.PowerOnAdmissionQueue;
+import it.polito.ai.virtualLabs.services.vm.TeamResourceLedger;
+import it.polito.ai.virtualLabs.services.vm.VmBulkPowerOff;
+import it.polito.ai.virtualLabs.services.vm.VmEventBroker;
+import it.polito.ai.virtualLabs.services.vm.VmIdleReaper;
+import it.polito.ai.virtualLabs.services.vm.VmPlacementEngine;
+import it.polito.ai.virtualLabs.services.vm.VmProvisioner;
+import it.polito.ai.virtualLabs.services.vm.VmStateRegistry;
+import it.polito.ai.virtualLabs.services.vm.VmUtilisationMetrics;
 import org.modelmapper.ModelMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.transaction.Transactional;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
-import java.util.Random;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
 import java.util.stream.Collectors;
 
 @Service
@@ -35,6 +51,7 @@ public class VmServiceImpl implements VmService {
     private static final int VM_MODEL_STEP_DISK = 512;
     private static final int VM_MODEL_MAX_TOT_VM = 10;
     private static final int VM_MODEL_STEP_TOT_VM = 1;
+    private static final int VM_MODEL_MAX_IDLE_TIMEOUT = 24 * 60;
 
     @Autowired
     VmRepository vmRepository;
@@ -49,11 +66,37 @@ public class VmServiceImpl implements VmService {
     @Autowired
     CourseRepository courseRepository;
     @Autowired
+    VmUsageRollupRepository vmUsageRollupRepository;
+    @Autowired
     ModelMapper modelMapper;
+    @Autowired
+    VmStateRegistry vmStateRegistry;
+    @Autowired
+    VmEventBroker vmEventBroker;
+    @Autowired
+    TeamResourceLedger teamResourceLedger;
+    @Autowired
+    VmIdleReaper vmIdleReaper;
+    @Autowired
+    VmBulkPowerOff vmBulkPowerOff;
+    @Autowired
+    VmPlacementEngine vmPlacementEngine;
+    @Autowired
+    VmProvisioner vmProvisioner;
+    @Autowired
+    PowerOnAdmissionQueue powerOnAdmissionQueue;
+    @Autowired
+    VmUtilisationMetrics vmUtilisationMetrics;
+    @Autowired
+    AuthorizationIndex authorizationIndex;
+    @Autowired
+    RequestMemo requestMemo;
+    @Autowired
+    ApplicationEventPublisher eventPublisher;
 
     @Override
     public Optional<VmDTO> getVm(Long vmId) {
-        if (!vmRepository.existsById(vmId))
+        if (!vmExists(vmId))
             return Optional.empty();
 
         authService.checkAuthorizationForVm(vmId);
@@ -62,6 +105,30 @@ public class VmServiceImpl implements VmService {
                 .map(vm -> modelMapper.map(vm, VmDTO.class));
     }
 
+    @Override
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public Optional<Boolean> getVmPowerState(Long vmId) {
+        Optional<VmStateRegistry.VmState> stateOpt = vmStateRegistry.get(vmId);
+        if(!stateOpt.isPresent()) {
+            //first request for this vm since startup: build its state once
+            Optional<Vm> vmOpt = vmRepository.findById(vmId);
+            if(!vmOpt.isPresent())
+                return Optional.empty();
+            stateOpt = Optional.of(registerVmState(vmOpt.get()));
+        }
+
+        VmStateRegistry.VmState state = stateOpt.get();
+        UserDetails userDetails = (UserDetails) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        if(!state.canView(userDetails.getUsername())) {
+            if(userDetails.getAuthorities().stream().anyMatch(role -> role.getAuthority().equals("ROLE_PROFESSOR")))
+                throw new ProfessorPrivacyException("This professor does not have permission to view the information relating to the vm with id " + vmId);
+            throw new StudentPrivacyException("This student does not have permission to view the information relating to the vm with id " + vmId);
+        }
+
+        vmIdleReaper.recordHeartbeat(vmId);
+        return Optional.of(state.isActive());
+    }
+
     @Override
     public Optional<VmModelDTO> getVmModel(Long vmModelId) {
         if (!vmModelRepository.existsById(vmModelId))
@@ -72,7 +139,7 @@ public class VmServiceImpl implements VmService {
 
     @Override
     public Optional<VmModelDTO> getVmModelForVm(Long vmId) {
-        if (!vmRepository.existsById(vmId))
+        if (!vmExists(vmId))
             return Optional.empty();
 
         authService.checkAuthorizationForVm(vmId);
@@ -83,7 +150,7 @@ public class VmServiceImpl implements VmService {
 
     @Override
     public Optional<StudentDTO> getCreator(Long vmId) {
-        if (!vmRepository.existsById(vmId))
+        if (!vmExists(vmId))
             return Optional.empty();
 
         return Optional.of(vmRepository.getOne(vmId).getCreator())
@@ -92,7 +159,7 @@ public class VmServiceImpl implements VmService {
 
     @Override
     public List<StudentDTO> getOwners(Long vmId) {
-        if (!vmRepository.existsById(vmId))
+        if (!vmExists(vmId))
             throw new VmNotFoundException("The vm with id " + vmId + " does not exist");
 
         authService.checkAuthorizationForVm(vmId);
@@ -105,7 +172,7 @@ public class VmServiceImpl implements VmService {
 
     @Override
     public Optional<TeamDTO> getTeam(Long vmId) {
-        if (!vmRepository.existsById(vmId))
+        if (!vmExists(vmId))
             return Optional.empty();
 
         authService.checkAuthorizationForVm(vmId);
@@ -130,6 +197,45 @@ public class VmServiceImpl implements VmService {
                 .collect(Collectors.toList());
     }
 
+    @Override
+    @PreAuthorize("hasRole('ROLE_PROFESSOR')")
+    public HostPoolMetricsDTO getHostPoolMetrics() {
+        return vmPlacementEngine.getMetrics();
+    }
+
+    @Override
+    @PreAuthorize("hasRole('ROLE_PROFESSOR')")
+    public VmMetricsDTO getCourseVmMetrics(String courseName, int minutes) {
+        if(!courseRepository.existsById(courseName))
+            throw new CourseNotFoundException("The course named " + courseName + " does not exist");
+
+        authService.checkAuthorizationForCourse(courseName);
+
+        return vmUtilisationMetrics.getMetrics(courseName, minutes);
+    }
+
+    @Override
+    @PreAuthorize("hasRole('ROLE_PROFESSOR')")
+    public List<VmUsageDTO> getCourseVmUsage(String courseName, LocalDateTime from, LocalDateTime to) {
+        if(!courseRepository.existsById(courseName))
+            throw new CourseNotFoundException("The course named " + courseName + " does not exist");
+
+        authService.checkAuthorizationForCourse(courseName);
+
+        //the hourly rollups overlapping the range are summed
+        List<VmUsageDTO> usage = new ArrayList<>();
+        for(Object[] row : vmUsageRollupRepository.sumByCourseName(courseName, from.truncatedTo(ChronoUnit.HOURS), to)) {
+            VmUsageDTO dto = new VmUsageDTO();
+            dto.setTeamId((Long) row[0]);
+            dto.setVmModelId((Long) row[1]);
+            dto.setVCPUHours((Double) row[2]);
+            dto.setRamGBHours((Double) row[3]);
+            dto.setDiskGBDays((Double) row[4]);
+            usage.add(dto);
+        }
+        return usage;
+    }
+
     @Override
     public Optional<VmModelDTO> getCourseVmModel(String courseName) {
         if(!courseRepository.existsById(courseName))
@@ -208,6 +314,17 @@ public class VmServiceImpl implements VmService {
                 .collect(Collectors.toList());
     }
 
+    @Override
+    public SseEmitter subscribeToTeamVmEvents(Long teamId) {
+        Optional<Team> teamOpt = teamRepository.findById(teamId);
+        if(!teamOpt.isPresent())
+            throw new TeamNotFoundException("The team with id " + teamId + " does not exist");
+
+        authService.checkAuthorizationForCourse(teamOpt.get().getCourse().getName());
+
+        return vmEventBroker.subscribe(teamId);
+    }
+
     @Override
     public List<VmModelDTO> getProfessorVmModels(String professorId) {
         if (!userRepository.professorExistsById(professorId))
@@ -241,16 +358,14 @@ public class VmServiceImpl implements VmService {
         Team team = teamRepository.getOne(teamId);
         authService.checkAuthorizationForCourse(team.getCourse().getName());
 
-        List<Vm> teamVms = team.getVms();
         VmModel vmModel = team.getCourse().getVmModel();
 
         //check if the course to which the team belongs has no vmModel yet
         if(vmModel == null)
             throw new VmModelNotFoundException("There is no VmModel for this course yet");
 
-        //check number of vms and resources constraints
-        if(teamVms.size() >= vmModel.getMaxTotVm() ||
-            resourcesExceeded(teamVms, vmModel, vmDTO.getVCPU(), vmDTO.getRAM(), vmDTO.getDisk()))
+        //check number of vms and resources constraints, reserving them for the new vm
+        if(!teamResourceLedger.tryAddVm(teamId, vmModel, vmDTO.getVCPU(), vmDTO.getRAM(), vmDTO.getDisk()))
             return 0L;
 
         //create VM
@@ -267,51 +382,62 @@ public class VmServiceImpl implements VmService {
         vm.setContent(vmModel.getOs() + "_v0");
 
         vmRepository.saveAndFlush(vm);
+        vmProvisioner.create(vm.getId(), vmModel.getOs(), vm.getVCPU(), vm.getRAM(), vm.getDisk());
+        replaceVmState(vm);
+        authorizationIndex.vmCreated(vm.getId(), teamId, vm.getOwners().stream().map(Student::getId).collect(Collectors.toList()));
+        publishVmEvent(VmEventDTO.Type.CREATED, vm);
         return vm.getId();
     }
 
     @Override
     @PreAuthorize("hasRole('ROLE_STUDENT')")
     public void removeVm(Long vmId) {
-        if(!vmRepository.existsById(vmId))
+        if(!vmExists(vmId))
             throw new VmNotFoundException("The vm with id " + vmId + " does not exist");
 
         authService.checkAuthorizationForVm(vmId, true);
 
         Vm curVm = vmRepository.getOne(vmId);
-        if(curVm.isActive())
+        if(curVm.getStatus() != Vm.VmStatus.STOPPED)
             throw new VmIsActiveException("The vm with id " + vmId + " cannot be deleted");
 
         //remove vm
+        VmEventDTO event = createVmEvent(VmEventDTO.Type.REMOVED, curVm);
+        teamResourceLedger.removeVm(curVm.getTeam().getId(), vmId, curVm.getVCPU(), curVm.getRAM(), curVm.getDisk());
         vmRepository.deleteById(vmId);
         vmRepository.flush();
+        vmProvisioner.delete(vmId);
+        powerOnAdmissionQueue.dequeue(curVm.getTeam().getCourse().getName(), vmId);
+        vmStateRegistry.remove(vmId);
+        authorizationIndex.vmRemoved(vmId);
+        eventPublisher.publishEvent(event);
     }
 
     @Override
     @PreAuthorize("hasRole('ROLE_STUDENT')")
     public boolean editVmResources(Long vmId, int vCPU, int ram, int disk) {
-        if(!vmRepository.existsById(vmId))
+        if(!vmExists(vmId))
             throw new VmNotFoundException("The vm with id " + vmId + " does not exist");
 
         authService.checkAuthorizationForVm(vmId, true);
 
-        //check resources constraints
         Vm curVm = vmRepository.getOne(vmId);
-        curVm.setVCPU(0);
-        curVm.setRAM(0);
-        curVm.setDisk(0);
-        if(resourcesExceeded(curVm.getTeam().getVms(), curVm.getVmModel(), vCPU, ram, disk))
-            return false;
-
-        if(curVm.isActive())
+        if(curVm.getStatus() != Vm.VmStatus.STOPPED)
             throw new VmIsActiveException("The vm with id " + vmId + " cannot be edited");
 
+        //check resources constraints
+        if(!teamResourceLedger.tryResizeVm(curVm.getTeam().getId(), curVm.getVmModel(),
+                curVm.getVCPU(), curVm.getRAM(), curVm.getDisk(), vCPU, ram, disk))
+            return false;
+
         //edit vm resources
         curVm.setVCPU(vCPU);
         curVm.setRAM(ram);
         curVm.setDisk(disk);
 
         vmRepository.saveAndFlush(curVm);
+        vmProvisioner.resize(vmId, vCPU, ram, disk);
+        publishVmEvent(VmEventDTO.Type.RESOURCES_EDITED, curVm);
         return true;
     }
 
@@ -330,11 +456,13 @@ public class VmServiceImpl implements VmService {
         int maxDisk = vmModelDTO.getMaxDisk();
         int maxTotVm = vmModelDTO.getMaxTotVm();
         int maxActiveVm = vmModelDTO.getMaxActiveVm();
+        int idleTimeout = vmModelDTO.getIdleTimeout();
 
         if(maxVCPU > VM_MODEL_MAX_VCPU || maxVCPU < VM_MODEL_STEP_VCPU || maxVCPU % VM_MODEL_STEP_VCPU != 0 ||
                 maxRAM > VM_MODEL_MAX_RAM || maxRAM < VM_MODEL_STEP_RAM || maxRAM % VM_MODEL_STEP_RAM != 0 ||
                 maxDisk > VM_MODEL_MAX_DISK || maxDisk < VM_MODEL_STEP_DISK || maxDisk % VM_MODEL_STEP_DISK != 0 ||
-                maxTotVm > VM_MODEL_MAX_TOT_VM || maxActiveVm > maxTotVm || maxActiveVm < 1)
+                maxTotVm > VM_MODEL_MAX_TOT_VM || maxActiveVm > maxTotVm || maxActiveVm < 1 ||
+                idleTimeout < 0 || idleTimeout > VM_MODEL_MAX_IDLE_TIMEOUT)
             throw new VmModelResourcesExceededException("The vm model with id " + vmModelId + "cannot be edit");
 
         curVmModel.setName(vmModelDTO.getName());
@@ -344,6 +472,7 @@ public class VmServiceImpl implements VmService {
         curVmModel.setMaxRAM(maxRAM);
         curVmModel.setMaxActiveVm(maxActiveVm);
         curVmModel.setMaxTotVm(maxTotVm);
+        curVmModel.setIdleTimeout(idleTimeout);
 
         vmModelRepository.saveAndFlush(curVmModel);
         return true;
@@ -359,17 +488,21 @@ public class VmServiceImpl implements VmService {
 
         authService.checkAuthorizationForCourse(vmModel.getCourse().getName());
 
-        //remove vmModel
+        //remove vmModel (its vms are removed too)
+        String courseName = vmModel.getCourse().getName();
+        vmModel.getCourse().getTeams().forEach(t -> teamResourceLedger.evictTeam(t.getId()));
+        vmUtilisationMetrics.evictCourse(courseName);
         vmModel.setProfessor(null);
         vmModel.setCourse(null);
 
         vmModelRepository.delete(vmModel);
         vmModelRepository.flush();
+        authorizationIndex.invalidate();
     }
 
     @Override
     public void changeVmContentRandom(Long vmId) {
-        if(!vmRepository.existsById(vmId))
+        if(!vmExists(vmId))
             throw new VmNotFoundException("The vm with id " + vmId + " does not exist");
 
         Vm vm = vmRepository.getOne(vmId);
@@ -379,22 +512,61 @@ public class VmServiceImpl implements VmService {
         vmRepository.saveAndFlush(vm);
     }
 
-    private boolean resourcesExceeded(List<Vm> teamVms, VmModel vmModel, int vCPU, int ram, int disk) {
-        int totRam = 0, totDisk = 0, totVCpu = 0;
+    // the controllers look up the same vm through several of these methods within one request
+    private boolean vmExists(Long vmId) {
+        return requestMemo.get("vm-exists:" + vmId, () -> vmRepository.existsById(vmId));
+    }
 
-        for(Vm v : teamVms) {
-            totRam += v.getRAM();
-            totDisk += v.getDisk();
-            totVCpu += v.getVCPU();
-        }
+    private VmEventDTO createVmEvent(VmEventDTO.Type type, Vm vm) {
+        VmEventDTO event = new VmEventDTO();
+        event.setType(type);
+        event.setVmId(vm.getId());
+        event.setTeamId(vm.getTeam().getId());
+        event.setCourseName(vm.getTeam().getCourse().getName());
+        event.setVmModelId(vm.getVmModel().getId());
+        event.setActive(vm.isActive());
+        event.setStatus(vm.getStatus());
+        event.setVCPU(vm.getVCPU());
+        event.setRAM(vm.getRAM());
+        event.setDisk(vm.getDisk());
+        return event;
+    }
+
+    private void publishVmEvent(VmEventDTO.Type type, Vm vm) {
+        //subscribers are notified once the transaction commits
+        eventPublisher.publishEvent(createVmEvent(type, vm));
+    }
+
+    // the registry applies the change once the transaction commits
+    private void updateVmState(Vm vm) {
+        if(vmStateRegistry.get(vm.getId()).isPresent())
+            vmStateRegistry.setActive(vm.getId(), vm.isActive());
+        else
+            replaceVmState(vm);
+    }
+
+    private void replaceVmState(Vm vm) {
+        Long teamId = vm.getTeam().getId();
+        String courseName = vm.getTeam().getCourse().getName();
+        vmStateRegistry.register(vm.getId(), teamId, courseName, vm.isActive(), viewersOf(teamId, courseName));
+    }
 
-        return ram < 0 || disk < 0 || vCPU < 0 || totRam + ram > vmModel.getMaxRAM() ||
-                totDisk + disk > vmModel.getMaxDisk() || totVCpu + vCPU > vmModel.getMaxVCPU();
+    private VmStateRegistry.VmState registerVmState(Vm vm) {
+        Long teamId = vm.getTeam().getId();
+        String courseName = vm.getTeam().getCourse().getName();
+        return vmStateRegistry.registerIfAbsent(vm.getId(), teamId, courseName, vm.isActive(), viewersOf(teamId, courseName));
+    }
+
+    private List<String> viewersOf(Long teamId, String courseName) {
+        //students of the team and professors of the course can see the vm
+        List<String> viewers = new ArrayList<>(teamRepository.getMemberUsernames(teamId));
+        viewers.addAll(courseRepository.getProfessorUsernames(courseName));
+        return viewers;
     }
 
     @Override
-    public boolean powerOnVm(Long vmId) {
-        if(!vmRepository.existsById(vmId))
+    public PowerOnResult powerOnVm(Long vmId) {
+        if(!vmExists(vmId))
             throw new VmNotFoundException("The vm with id " + vmId + " does not exist");
 
         authService.checkAuthorizationForVm(vmId, true);
@@ -402,45 +574,138 @@ public class VmServiceImpl implements VmService {
         //check if vm is already active
         Vm vm = vmRepository.getOne(vmId);
         if(vm.isActive())
-            return false;
+            return PowerOnResult.REJECTED;
+        if(activateVm(vm))
+            return PowerOnResult.POWERED_ON;
+
+        //no capacity for the vm now, it is powered on as soon as its turn comes
+        String courseName = vm.getTeam().getCourse().getName();
+        boolean alreadyQueued = powerOnAdmissionQueue.isQueued(courseName, vmId);
+        if(!powerOnAdmissionQueue.enqueue(courseName, vm.getTeam().getId(), vmId))
+            return PowerOnResult.REJECTED;
+        if(!alreadyQueued)
+            publishVmEvent(VmEventDTO.Type.POWER_ON_QUEUED, vm);
+        return PowerOnResult.QUEUED;
+    }
 
-        //get number of active vms for the group to which vm belongs
-        int nActiveVMs = 0;
-        for(Vm v : vm.getTeam().getVms()) {
-            if(v.isActive())
-                nActiveVMs++;
-        }
+    @Override
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    public boolean admitQueuedPowerOn(Long vmId) {
+        //a request for a vm that no longer exists or is already active is done as well
+        Optional<Vm> vm = vmRepository.lockVm(vmId);
+        if(!vm.isPresent() || vm.get().isActive())
+            return true;
+        //withdrawn by a power-off: that holds the vm lock while dequeuing, so it is seen here
+        if(!powerOnAdmissionQueue.isQueued(vm.get().getTeam().getCourse().getName(), vmId))
+            return true;
+        //the course has been disabled meanwhile, the request is dropped
+        if(!vm.get().getTeam().getCourse().isEnabled())
+            return true;
+        return activateVm(vm.get());
+    }
 
-        //check max number of active vms constraint
-        if(nActiveVMs >= vm.getVmModel().getMaxActiveVm())
+    // false if the vm fits neither the hosts nor the max number of active vms of its team
+    private boolean activateVm(Vm vm) {
+        Long vmId = vm.getId();
+
+        //the vm needs a host with enough free capacity before it counts as active for the team
+        if(!vmPlacementEngine.place(vmId, vm.getVCPU(), vm.getRAM(), vm.getDisk()))
+            return false;
+        if(!teamResourceLedger.tryActivate(vm.getTeam().getId(), vmId, vm.getVmModel().getMaxActiveVm())) {
+            vmPlacementEngine.release(vmId);
             return false;
+        }
 
-        //set vm as active
+        //set vm as active, it is running once the provider has booted it
         vm.setActive(true);
+        vm.setStatus(Vm.VmStatus.STARTING);
 
         vmRepository.saveAndFlush(vm);
+        vmProvisioner.start(vmId);
+        updateVmState(vm);
+        vmIdleReaper.watch(vmId, vm.getVmModel());
+        publishVmEvent(VmEventDTO.Type.POWERED_ON, vm);
         return true;
     }
 
     @Override
     public boolean powerOffVm(Long vmId) {
-        if(!vmRepository.existsById(vmId))
+        if(!vmExists(vmId))
             throw new VmNotFoundException("The vm with id " + vmId + " does not exist");
 
         authService.checkAuthorizationForVm(vmId, true);
 
-        //check if vm is already off
-        Vm vm = vmRepository.getOne(vmId);
+        //check if vm is already off, a pending power-on request is withdrawn
+        //the vm is locked so that the request cannot be admitted while it is withdrawn
+        Vm vm = vmRepository.lockVm(vmId).get();
         if(!vm.isActive())
-            return false;
+            return powerOnAdmissionQueue.dequeue(vm.getTeam().getCourse().getName(), vmId);
 
-        //set vm as active
+        //set vm as inactive, it is stopped once the provider has shut it down
         vm.setActive(false);
+        vm.setStatus(Vm.VmStatus.STOPPING);
+        teamResourceLedger.deactivate(vm.getTeam().getId(), vmId);
+        vmPlacementEngine.release(vmId);
 
         vmRepository.saveAndFlush(vm);
+        vmProvisioner.stop(vmId);
+        updateVmState(vm);
+        vmIdleReaper.unwatch(vmId);
+        publishVmEvent(VmEventDTO.Type.POWERED_OFF, vm);
         return true;
     }
 
+    @Override
+    @PreAuthorize("hasRole('ROLE_PROFESSOR')")
+    public Map<Long, Boolean> powerOffTeamVms(Long teamId) {
+        Optional<Team> teamOpt = teamRepository.findById(teamId);
+        if(!teamOpt.isPresent())
+            throw new TeamNotFoundException("The team with id " + teamId + " does not exist");
+
+        authService.checkAuthorizationForCourse(teamOpt.get().getCourse().getName());
+
+        return vmBulkPowerOff.powerOff(vmRepository.getVmIdsByTeamId(teamId));
+    }
+
+    @Override
+    @PreAuthorize("hasRole('ROLE_PROFESSOR')")
+    public Map<Long, Boolean> powerOffCourseVms(String courseName) {
+        if(!courseRepository.existsById(courseName))
+            throw new CourseNotFoundException("The course named " + courseName + " does not exist");
+
+        authService.checkAuthorizationForCourse(courseName);
+
+        return vmBulkPowerOff.powerOff(vmRepository.getVmIdsByCourseName(courseName));
+    }
+
+    @Override
+    @Transactional(Transactional.TxType.REQUIRES_NEW)
+    public void completeVmTransition(Long vmId, Vm.VmStatus from, boolean succeeded) {
+        //ignore the completions of transitions that have been superseded meanwhile
+        Optional<Vm> vmOpt = vmRepository.findById(vmId);
+        if(!vmOpt.isPresent() || vmOpt.get().getStatus() != from)
+            return;
+
+        Vm vm = vmOpt.get();
+        VmEventDTO.Type eventType = VmEventDTO.Type.STATUS_CHANGED;
+        if(from == Vm.VmStatus.STARTING && succeeded)
+            vm.setStatus(Vm.VmStatus.RUNNING);
+        else if(from == Vm.VmStatus.STARTING) {
+            //the vm did not boot, release what was reserved for it
+            vm.setActive(false);
+            vm.setStatus(Vm.VmStatus.STOPPED);
+            teamResourceLedger.deactivate(vm.getTeam().getId(), vmId);
+            vmPlacementEngine.release(vmId);
+            vmIdleReaper.unwatch(vmId);
+            eventType = VmEventDTO.Type.POWERED_OFF;
+        } else
+            vm.setStatus(Vm.VmStatus.STOPPED);
+
+        vmRepository.saveAndFlush(vm);
+        updateVmState(vm);
+        publishVmEvent(eventType, vm);
+    }
+
     @Override
     @PreAuthorize("hasRole('ROLE_PROFESSOR')")
     public boolean setVmModelToCourse(VmModelDTO vmModelDTO, String courseName, String professorId) {
@@ -0,0 +1,16 @@
+package it.polito.ai.virtualLabs.services.exceptions.team;
+
+import java.util.List;
+
+public class TeamProposalNotValidException extends TeamServiceException {
+    private final List<String> violations;
+
+    public TeamProposalNotValidException(List<String> violations) {
+        super(String.join("; ", violations) + " Error type: TEAM PROPOSAL NOT VALID");
+        this.violations = violations;
+    }
+
+    public List<String> getViolations() {
+        return violations;
+    }
+}
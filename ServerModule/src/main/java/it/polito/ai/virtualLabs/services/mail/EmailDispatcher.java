@@ -0,0 +1,165 @@
+package it.polito.ai.virtualLabs.services.mail;
+
+import it.polito.ai.virtualLabs.entities.EmailOutbox;
+import it.polito.ai.virtualLabs.repositories.EmailOutboxRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Sends the emails queued in the outbox. The due rows are read a batch at a time and every batch
+ * goes through a single SMTP connection; no transaction is held while the server is talked to.
+ * Digest rows are sent together with all the other pending digest rows of the same recipient as a
+ * single email. A message that could not be delivered is retried with an exponential backoff
+ * until it runs out of attempts, then it is marked as failed together with the last error.
+ */
+@Component
+public class EmailDispatcher {
+
+    @Value("${virtuallabs.mail.batch-size:50}")
+    private int batchSize = 50;
+    @Value("${virtuallabs.mail.max-attempts:6}")
+    private int maxAttempts = 6;
+    @Value("${virtuallabs.mail.retry-delay:30}")
+    private long retryDelaySeconds = 30;
+    @Value("${virtuallabs.mail.max-retry-delay:3600}")
+    private long maxRetryDelaySeconds = 3600;
+    @Value("${virtuallabs.mail.digest.subject:VirtualLabs notifications}")
+    private String digestSubject = "VirtualLabs notifications";
+
+    @Autowired
+    JavaMailSender emailSender;
+    @Autowired
+    EmailOutboxRepository emailOutboxRepository;
+
+    @Scheduled(fixedDelayString = "${virtuallabs.mail.dispatch-interval:5000}")
+    public void dispatch() {
+        dispatch(LocalDateTime.now());
+    }
+
+    void dispatch(LocalDateTime now) {
+        List<EmailOutbox> batch;
+        do {
+            batch = emailOutboxRepository.getDueEmails(EmailOutbox.EmailStatus.PENDING, now, PageRequest.of(0, batchSize));
+            if(!batch.isEmpty())
+                send(group(batch), now);
+        } while(batch.size() == batchSize);
+    }
+
+    // one list of rows per email to send: a single row, or every pending digest row of a recipient
+    private List<List<EmailOutbox>> group(List<EmailOutbox> batch) {
+        List<List<EmailOutbox>> emails = new ArrayList<>();
+        Set<String> digestRecipients = new HashSet<>();
+        for(EmailOutbox email : batch) {
+            if(email.isDigest())
+                digestRecipients.add(email.getRecipient());
+            else
+                emails.add(Collections.singletonList(email));
+        }
+        if(!digestRecipients.isEmpty())
+            emails.addAll(emailOutboxRepository.getDigestEmails(EmailOutbox.EmailStatus.PENDING, digestRecipients).stream()
+                    .collect(Collectors.groupingBy(EmailOutbox::getRecipient, LinkedHashMap::new, Collectors.toList()))
+                    .values());
+        return emails;
+    }
+
+    private void send(List<List<EmailOutbox>> emails, LocalDateTime now) {
+        Map<MimeMessage, List<EmailOutbox>> messages = new LinkedHashMap<>();
+        List<EmailOutbox> failed = new ArrayList<>();
+
+        for(List<EmailOutbox> rows : emails) {
+            try {
+                messages.put(toMimeMessage(rows), rows);
+            } catch(MessagingException ex) {
+                // a malformed address or body will never go through, do not retry it
+                rows.forEach(email -> fail(email, ex, now, true));
+                failed.addAll(rows);
+            }
+        }
+
+        Set<MimeMessage> undelivered = new HashSet<>();
+        if(!messages.isEmpty()) {
+            try {
+                emailSender.send(messages.keySet().toArray(new MimeMessage[0]));
+            } catch(MailSendException ex) {
+                // the messages missing from the map were accepted by the server before the failure
+                ex.getFailedMessages().forEach((message, cause) -> {
+                    List<EmailOutbox> rows = messages.get(message);
+                    if(rows != null) {
+                        rows.forEach(email -> fail(email, cause, now, false));
+                        failed.addAll(rows);
+                        undelivered.add((MimeMessage) message);
+                    }
+                });
+                if(ex.getFailedMessages().isEmpty())
+                    failAll(messages, ex, now, failed, undelivered);
+            } catch(MailException ex) {
+                failAll(messages, ex, now, failed, undelivered);
+            }
+        }
+
+        List<Long> sent = new ArrayList<>();
+        messages.forEach((message, rows) -> {
+            if(!undelivered.contains(message))
+                rows.forEach(email -> sent.add(email.getId()));
+        });
+        if(!sent.isEmpty())
+            emailOutboxRepository.markSent(sent, EmailOutbox.EmailStatus.SENT, now);
+        if(!failed.isEmpty()) {
+            emailOutboxRepository.saveAll(failed);
+            System.err.println(failed.size() + " of " + (sent.size() + failed.size()) + " emails could not be sent");
+        }
+    }
+
+    private MimeMessage toMimeMessage(List<EmailOutbox> rows) throws MessagingException {
+        MimeMessage message = emailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(message, "utf-8");
+        helper.setTo(rows.get(0).getRecipient());
+        if(rows.size() == 1) {
+            helper.setText(rows.get(0).getBody(), true);
+            helper.setSubject(rows.get(0).getSubject());
+        } else {
+            helper.setText(rows.stream()
+                    .map(email -> "<h3>" + email.getSubject() + "</h3>" + email.getBody())
+                    .collect(Collectors.joining("<br><hr>")), true);
+            helper.setSubject(digestSubject + " (" + rows.size() + ")");
+        }
+        return message;
+    }
+
+    private void failAll(Map<MimeMessage, List<EmailOutbox>> messages, Exception cause, LocalDateTime now,
+                         List<EmailOutbox> failed, Set<MimeMessage> undelivered) {
+        messages.forEach((message, rows) -> {
+            rows.forEach(email -> fail(email, cause, now, false));
+            failed.addAll(rows);
+            undelivered.add(message);
+        });
+    }
+
+    private void fail(EmailOutbox email, Exception cause, LocalDateTime now, boolean permanent) {
+        int attempts = email.getAttempts() + 1;
+        String error = String.valueOf(cause.getMessage());
+
+        email.setAttempts(attempts);
+        email.setLastError(error.length() > 1000 ? error.substring(0, 1000) : error);
+        if(permanent || attempts >= maxAttempts) {
+            email.setStatus(EmailOutbox.EmailStatus.FAILED);
+            return;
+        }
+        // 30s, 1m, 2m, 4m... up to the maximum delay
+        long delay = Math.min(maxRetryDelaySeconds, retryDelaySeconds << Math.min(attempts - 1, 20));
+        email.setNextAttemptAt(now.plusSeconds(delay));
+    }
+}
@@ -0,0 +1,201 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import it.polito.ai.virtualLabs.dtos.VmEventDTO;
+import it.polito.ai.virtualLabs.services.VmService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static it.polito.ai.virtualLabs.services.vm.TransactionActions.afterCommit;
+import static it.polito.ai.virtualLabs.services.vm.TransactionActions.onRollback;
+
+/**
+ * Power-on requests that could not be admitted right away, one queue per course. Whenever
+ * capacity is freed the queues are drained on a single background thread: at each step the
+ * head request of the team with the fewest active vms is tried first, ties going to the team
+ * served least recently, so a team with many queued vms cannot starve the others.
+ */
+@Component
+public class PowerOnAdmissionQueue {
+
+    @Value("${virtuallabs.vm.admission.max-queued-per-course:256}")
+    private int maxQueuedPerCourse = 256;
+
+    @Autowired
+    TeamResourceLedger teamResourceLedger;
+    @Autowired
+    @Lazy
+    VmService vmService;
+
+    private final Map<String, CourseQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final ExecutorService drainer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "vm-admission");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // false if the queue of the course is full
+    public boolean enqueue(String courseName, Long teamId, Long vmId) {
+        boolean[] added = new boolean[1];
+        //added inside compute: a drain that finds the queue empty cannot remove it meanwhile
+        queues.compute(courseName, (c, queue) -> {
+            if(queue == null)
+                queue = new CourseQueue();
+            synchronized (queue) {
+                added[0] = queue.add(teamId, vmId, maxQueuedPerCourse);
+            }
+            return queue;
+        });
+        if(!added[0])
+            return false;
+        onRollback(() -> dequeue(courseName, vmId));
+        //capacity may have been freed while the request was being refused
+        afterCommit(this::requestDrain);
+        return true;
+    }
+
+    public boolean dequeue(String courseName, Long vmId) {
+        CourseQueue queue = queues.get(courseName);
+        if(queue == null)
+            return false;
+        synchronized (queue) {
+            return queue.remove(vmId);
+        }
+    }
+
+    // the vms whose request has been withdrawn, whatever their course
+    public Set<Long> dequeueAll(Collection<Long> vmIds) {
+        Set<Long> withdrawn = new HashSet<>();
+        for(CourseQueue queue : queues.values()) {
+            synchronized (queue) {
+                for(Long vmId : vmIds)
+                    if(queue.remove(vmId))
+                        withdrawn.add(vmId);
+            }
+        }
+        return withdrawn;
+    }
+
+    public boolean isQueued(String courseName, Long vmId) {
+        CourseQueue queue = queues.get(courseName);
+        if(queue == null)
+            return false;
+        synchronized (queue) {
+            return queue.teamOf.containsKey(vmId);
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onVmEvent(VmEventDTO event) {
+        if(event.getType() == VmEventDTO.Type.POWERED_OFF || event.getType() == VmEventDTO.Type.REMOVED)
+            requestDrain();
+    }
+
+    // safety net for capacity freed without an event, e.g. by a rolled back power-on
+    @Scheduled(fixedDelayString = "${virtuallabs.vm.admission.interval:30000}")
+    public void requestDrain() {
+        if(queues.isEmpty() || !drainScheduled.compareAndSet(false, true))
+            return;
+        drainer.execute(() -> {
+            //requests arriving from now on schedule another drain
+            drainScheduled.set(false);
+            queues.forEach(this::drain);
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        drainer.shutdownNow();
+    }
+
+    private void drain(String courseName, CourseQueue queue) {
+        boolean progress = true;
+        while(progress) {
+            progress = false;
+            for(Long vmId : fairOrder(queue)) {
+                boolean done;
+                try {
+                    done = vmService.admitQueuedPowerOn(vmId);
+                } catch (RuntimeException e) {
+                    System.err.println("Unable to admit the power-on of vm " + vmId + ": " + e.getMessage());
+                    done = false;
+                }
+                if(done) {
+                    synchronized (queue) {
+                        Long teamId = queue.teamOf.get(vmId);
+                        if(queue.remove(vmId))
+                            queue.lastServed.put(teamId, ++queue.servedCount);
+                    }
+                    //the active counts changed, recompute the order
+                    progress = true;
+                    break;
+                }
+            }
+        }
+        queues.computeIfPresent(courseName, (c, q) -> {
+            synchronized (q) {
+                return q.teamOf.isEmpty() ? null : q;
+            }
+        });
+    }
+
+    // the head request of every team, best candidate first
+    private List<Long> fairOrder(CourseQueue queue) {
+        List<Long> teams;
+        Map<Long, Long> heads = new HashMap<>();
+        Map<Long, Long> served = new HashMap<>();
+        synchronized (queue) {
+            teams = new ArrayList<>(queue.pending.keySet());
+            for(Long teamId : teams) {
+                heads.put(teamId, queue.pending.get(teamId).peek());
+                served.put(teamId, queue.lastServed.getOrDefault(teamId, 0L));
+            }
+        }
+        Map<Long, Integer> active = new HashMap<>();
+        teams.forEach(t -> active.put(t, teamResourceLedger.activeVms(t)));
+        teams.sort(Comparator.comparing((Long t) -> active.get(t)).thenComparing(served::get));
+
+        List<Long> order = new ArrayList<>();
+        teams.forEach(t -> order.add(heads.get(t)));
+        return order;
+    }
+
+    private static class CourseQueue {
+        private final Map<Long, Deque<Long>> pending = new LinkedHashMap<>();
+        private final Map<Long, Long> teamOf = new HashMap<>();
+        private final Map<Long, Long> lastServed = new HashMap<>();
+        private long servedCount = 0;
+
+        private boolean add(Long teamId, Long vmId, int maxQueued) {
+            if(teamOf.containsKey(vmId))
+                return true;
+            if(teamOf.size() >= maxQueued)
+                return false;
+            teamOf.put(vmId, teamId);
+            pending.computeIfAbsent(teamId, t -> new ArrayDeque<>()).add(vmId);
+            return true;
+        }
+
+        private boolean remove(Long vmId) {
+            Long teamId = teamOf.remove(vmId);
+            if(teamId == null)
+                return false;
+            Deque<Long> requests = pending.get(teamId);
+            requests.remove(vmId);
+            if(requests.isEmpty())
+                pending.remove(teamId);
+            return true;
+        }
+    }
+}
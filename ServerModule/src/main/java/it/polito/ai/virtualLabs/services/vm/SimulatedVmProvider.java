@@ -0,0 +1,96 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * In-process backend that only waits for the configured latency before completing an operation.
+ */
+@Component
+@ConditionalOnProperty(name = "virtuallabs.vm.provider", havingValue = "simulated", matchIfMissing = true)
+public class SimulatedVmProvider implements VmProvider {
+
+    @Value("${virtuallabs.vm.provider.boot-latency:5000}")
+    private long bootLatency = 5000; // milliseconds
+
+    @Value("${virtuallabs.vm.provider.shutdown-latency:2000}")
+    private long shutdownLatency = 2000; // milliseconds
+
+    @Value("${virtuallabs.vm.provider.provisioning-latency:500}")
+    private long provisioningLatency = 500; // milliseconds
+
+    @Value("${virtuallabs.vm.provider.threads:2}")
+    private int threads = 2;
+
+    private final Map<Long, Operation> pending = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, "vm-provider");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public CompletableFuture<Void> create(Long vmId, String os, int vCPU, int ram, int disk) {
+        return schedule(vmId, provisioningLatency);
+    }
+
+    @Override
+    public CompletableFuture<Void> start(Long vmId) {
+        return schedule(vmId, bootLatency);
+    }
+
+    @Override
+    public CompletableFuture<Void> stop(Long vmId) {
+        return schedule(vmId, shutdownLatency);
+    }
+
+    @Override
+    public CompletableFuture<Void> resize(Long vmId, int vCPU, int ram, int disk) {
+        return schedule(vmId, provisioningLatency);
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(Long vmId) {
+        return schedule(vmId, provisioningLatency);
+    }
+
+    private CompletableFuture<Void> schedule(Long vmId, long latency) {
+        Operation operation = new Operation();
+        Operation previous = pending.put(vmId, operation);
+        if(previous != null)
+            previous.cancel();
+
+        operation.task = scheduler.schedule(() -> {
+            pending.remove(vmId, operation);
+            operation.result.complete(null);
+        }, latency, TimeUnit.MILLISECONDS);
+        return operation.result;
+    }
+
+    private static class Operation {
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        private volatile ScheduledFuture<?> task;
+
+        private void cancel() {
+            if(task != null)
+                task.cancel(false);
+            result.cancel(false);
+        }
+    }
+}
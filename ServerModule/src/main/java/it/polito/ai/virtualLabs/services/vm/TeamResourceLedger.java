@@ -0,0 +1,195 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import it.polito.ai.virtualLabs.entities.Vm;
+import it.polito.ai.virtualLabs.entities.VmModel;
+import it.polito.ai.virtualLabs.repositories.VmRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static it.polito.ai.virtualLabs.services.vm.TransactionActions.afterCommit;
+import static it.polito.ai.virtualLabs.services.vm.TransactionActions.afterCompletion;
+
+/**
+ * Resources used by every team, kept up to date incrementally. Checks and updates of the same
+ * team are serialized on a lock stripe, so two concurrent requests cannot both take the last
+ * slot. Changes made inside a transaction are undone if that transaction rolls back.
+ * A team is evicted only after the evicting transaction commits and, while other transactions
+ * still hold changes on it, its usage is kept until the last of them completes: reloading it
+ * earlier would miss their reservations and let their compensations hit the reloaded usage.
+ */
+@Component
+public class TeamResourceLedger {
+
+    private static final int LOCK_STRIPES = 64;
+
+    @Autowired
+    VmRepository vmRepository;
+
+    private final Map<Long, TeamUsage> usages = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public TeamResourceLedger() {
+        for(int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new Object();
+    }
+
+    public boolean tryAddVm(Long teamId, VmModel vmModel, int vCPU, int ram, int disk) {
+        if(vCPU < 0 || ram < 0 || disk < 0)
+            return false;
+
+        TeamUsage usage;
+        synchronized (lockFor(teamId)) {
+            usage = usageOf(teamId);
+            if(usage.vms >= vmModel.getMaxTotVm() || exceeds(usage, vmModel, vCPU, ram, disk))
+                return false;
+            usage.add(vCPU, ram, disk, 1);
+            usage.pending++;
+        }
+        settle(teamId, usage, u -> u.add(-vCPU, -ram, -disk, -1));
+        return true;
+    }
+
+    public boolean tryResizeVm(Long teamId, VmModel vmModel, int oldVCPU, int oldRam, int oldDisk,
+                               int vCPU, int ram, int disk) {
+        if(vCPU < 0 || ram < 0 || disk < 0)
+            return false;
+
+        int deltaVCPU = vCPU - oldVCPU, deltaRam = ram - oldRam, deltaDisk = disk - oldDisk;
+        TeamUsage usage;
+        synchronized (lockFor(teamId)) {
+            usage = usageOf(teamId);
+            if(exceeds(usage, vmModel, deltaVCPU, deltaRam, deltaDisk))
+                return false;
+            usage.add(deltaVCPU, deltaRam, deltaDisk, 0);
+            usage.pending++;
+        }
+        settle(teamId, usage, u -> u.add(-deltaVCPU, -deltaRam, -deltaDisk, 0));
+        return true;
+    }
+
+    public void removeVm(Long teamId, Long vmId, int vCPU, int ram, int disk) {
+        TeamUsage usage;
+        boolean wasActive;
+        synchronized (lockFor(teamId)) {
+            usage = usageOf(teamId);
+            usage.add(-vCPU, -ram, -disk, -1);
+            wasActive = usage.activeVms.remove(vmId);
+            usage.pending++;
+        }
+        settle(teamId, usage, u -> {
+            u.add(vCPU, ram, disk, 1);
+            if(wasActive)
+                u.activeVms.add(vmId);
+        });
+    }
+
+    // false if the vm is already active or the team reached its maximum number of active vms
+    public boolean tryActivate(Long teamId, Long vmId, int maxActiveVm) {
+        TeamUsage usage;
+        synchronized (lockFor(teamId)) {
+            usage = usageOf(teamId);
+            if(usage.activeVms.contains(vmId) || usage.activeVms.size() >= maxActiveVm)
+                return false;
+            usage.activeVms.add(vmId);
+            usage.pending++;
+        }
+        settle(teamId, usage, u -> u.activeVms.remove(vmId));
+        return true;
+    }
+
+    public boolean deactivate(Long teamId, Long vmId) {
+        TeamUsage usage;
+        synchronized (lockFor(teamId)) {
+            usage = usages.get(teamId);
+            if(usage == null || !usage.activeVms.remove(vmId))
+                return false;
+            usage.pending++;
+        }
+        settle(teamId, usage, u -> u.activeVms.add(vmId));
+        return true;
+    }
+
+    public int activeVms(Long teamId) {
+        synchronized (lockFor(teamId)) {
+            return usageOf(teamId).activeVms.size();
+        }
+    }
+
+    public void evictTeam(Long teamId) {
+        afterCommit(() -> {
+            synchronized (lockFor(teamId)) {
+                TeamUsage usage = usages.get(teamId);
+                if(usage == null)
+                    return;
+                if(usage.pending == 0)
+                    usages.remove(teamId);
+                else
+                    usage.evicted = true;
+            }
+        });
+    }
+
+    // once the transaction completes undoes the change if it rolled back, then drops the usage
+    // if it was evicted meanwhile and no other change is pending on it
+    private void settle(Long teamId, TeamUsage usage, Consumer<TeamUsage> undo) {
+        afterCompletion(committed -> {
+            synchronized (lockFor(teamId)) {
+                //a usage that is no longer the current one has nothing left to undo
+                if(usages.get(teamId) != usage)
+                    return;
+                if(!committed)
+                    undo.accept(usage);
+                if(--usage.pending == 0 && usage.evicted)
+                    usages.remove(teamId);
+            }
+        });
+    }
+
+    private boolean exceeds(TeamUsage usage, VmModel vmModel, int vCPU, int ram, int disk) {
+        return usage.vCPU + vCPU > vmModel.getMaxVCPU() ||
+                usage.ram + ram > vmModel.getMaxRAM() ||
+                usage.disk + disk > vmModel.getMaxDisk();
+    }
+
+    // must be called holding the lock of the team
+    private TeamUsage usageOf(Long teamId) {
+        return usages.computeIfAbsent(teamId, id -> {
+            //the team vms are summed only the first time the team is seen
+            TeamUsage usage = new TeamUsage();
+            for(Vm v : vmRepository.findAllByTeamId(id)) {
+                usage.add(v.getVCPU(), v.getRAM(), v.getDisk(), 1);
+                if(v.isActive())
+                    usage.activeVms.add(v.getId());
+            }
+            return usage;
+        });
+    }
+
+    private Object lockFor(Long teamId) {
+        return locks[(teamId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    private static class TeamUsage {
+        private int vCPU;
+        private int ram;
+        private int disk;
+        private int vms;
+        private final Set<Long> activeVms = new HashSet<>();
+        // changes of transactions not completed yet
+        private int pending;
+        private boolean evicted;
+
+        private void add(int vCPU, int ram, int disk, int vms) {
+            this.vCPU += vCPU;
+            this.ram += ram;
+            this.disk += disk;
+            this.vms += vms;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.function.Consumer;
+
+public final class TransactionActions {
+
+    private TransactionActions() {
+    }
+
+    // runs the action if the current transaction (if any) is rolled back
+    public static void onRollback(Runnable action) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive())
+            return;
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if(status == TransactionSynchronization.STATUS_ROLLED_BACK)
+                    action.run();
+            }
+        });
+    }
+
+    // runs the action once the current transaction commits, or right away outside a transaction
+    public static void afterCommit(Runnable action) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    // runs the action once the current transaction completes, telling whether it committed;
+    // right away outside a transaction
+    public static void afterCompletion(Consumer<Boolean> action) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.accept(true);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                action.accept(status == TransactionSynchronization.STATUS_COMMITTED);
+            }
+        });
+    }
+}
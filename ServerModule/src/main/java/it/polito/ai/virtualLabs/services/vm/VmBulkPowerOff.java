@@ -0,0 +1,89 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import it.polito.ai.virtualLabs.dtos.VmEventDTO;
+import it.polito.ai.virtualLabs.entities.Vm;
+import it.polito.ai.virtualLabs.repositories.VmRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.transaction.Transactional;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Powers off many vms at once with a single update. It performs no authorization check: it is
+ * only used by the services that already checked the caller and by the idle reaper, which runs
+ * without one, and is therefore kept out of the public service interface.
+ */
+@Component
+public class VmBulkPowerOff {
+
+    @Autowired
+    VmRepository vmRepository;
+    @Autowired
+    TeamResourceLedger teamResourceLedger;
+    @Autowired
+    VmPlacementEngine vmPlacementEngine;
+    @Autowired
+    VmProvisioner vmProvisioner;
+    @Autowired
+    VmStateRegistry vmStateRegistry;
+    @Autowired
+    @Lazy
+    VmIdleReaper vmIdleReaper;
+    @Autowired
+    PowerOnAdmissionQueue powerOnAdmissionQueue;
+    @Autowired
+    ApplicationEventPublisher eventPublisher;
+
+    // true for every vm that was active and has been powered off or had a queued power-on withdrawn
+    @Transactional
+    public Map<Long, Boolean> powerOff(Collection<Long> vmIds) {
+        Map<Long, Boolean> results = new LinkedHashMap<>();
+        vmIds.forEach(id -> results.put(id, false));
+        if(vmIds.isEmpty())
+            return results;
+
+        //the vms are locked so that no queued power-on can be admitted while it is withdrawn
+        List<Vm> vms = vmRepository.lockVms(vmIds).stream().filter(Vm::isActive).collect(Collectors.toList());
+        powerOnAdmissionQueue.dequeueAll(vmIds).forEach(id -> results.put(id, true));
+        if(vms.isEmpty())
+            return results;
+
+        //power off the active ones with a single update
+
+        List<VmEventDTO> events = new ArrayList<>();
+        for(Vm vm : vms) {
+            events.add(poweredOff(vm));
+            results.put(vm.getId(), true);
+        }
+        vmRepository.powerOffAll(vms.stream().map(Vm::getId).collect(Collectors.toList()), Vm.VmStatus.STOPPING);
+
+        for(VmEventDTO event : events) {
+            teamResourceLedger.deactivate(event.getTeamId(), event.getVmId());
+            vmPlacementEngine.release(event.getVmId());
+            vmProvisioner.stop(event.getVmId());
+            vmStateRegistry.setActive(event.getVmId(), false);
+            vmIdleReaper.unwatch(event.getVmId());
+            eventPublisher.publishEvent(event);
+        }
+        return results;
+    }
+
+    private VmEventDTO poweredOff(Vm vm) {
+        VmEventDTO event = new VmEventDTO();
+        event.setType(VmEventDTO.Type.POWERED_OFF);
+        event.setVmId(vm.getId());
+        event.setTeamId(vm.getTeam().getId());
+        event.setCourseName(vm.getTeam().getCourse().getName());
+        event.setVmModelId(vm.getVmModel().getId());
+        event.setActive(false);
+        event.setStatus(Vm.VmStatus.STOPPING);
+        event.setVCPU(vm.getVCPU());
+        event.setRAM(vm.getRAM());
+        event.setDisk(vm.getDisk());
+        return event;
+    }
+}
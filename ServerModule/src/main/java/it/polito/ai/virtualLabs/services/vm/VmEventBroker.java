@@ -0,0 +1,140 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import it.polito.ai.virtualLabs.dtos.VmEventDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes the vm events of a team to its SSE subscribers. Every subscriber has a bounded buffer
+ * where events of the same vm are coalesced; when a slow consumer fills it, the buffer is
+ * replaced by a single RESYNC event telling the client to fetch the team vms again.
+ */
+@Component
+public class VmEventBroker {
+
+    @Value("${virtuallabs.vm.events.buffer-size:64}")
+    private int bufferSize = 64;
+
+    @Value("${virtuallabs.vm.events.timeout:1800000}")
+    private long timeout = 1800000; // 30 min, then the client reconnects
+
+    @Value("${virtuallabs.vm.events.dispatcher-threads:4}")
+    private int dispatcherThreads = 4;
+
+    private final Map<Long, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private ExecutorService dispatcher;
+
+    public SseEmitter subscribe(Long teamId) {
+        SseEmitter emitter = new SseEmitter(timeout);
+        Subscriber subscriber = new Subscriber(teamId, emitter);
+
+        subscribers.computeIfAbsent(teamId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(() -> unsubscribe(subscriber));
+        emitter.onError(e -> unsubscribe(subscriber));
+        return emitter;
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onVmEvent(VmEventDTO event) {
+        Set<Subscriber> teamSubscribers = subscribers.get(event.getTeamId());
+        if(teamSubscribers == null)
+            return;
+        teamSubscribers.forEach(s -> s.offer(event));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if(dispatcher != null)
+            dispatcher.shutdownNow();
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        subscribers.computeIfPresent(subscriber.teamId, (id, set) -> {
+            set.remove(subscriber);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private synchronized ExecutorService dispatcher() {
+        if(dispatcher == null) {
+            AtomicInteger counter = new AtomicInteger();
+            dispatcher = Executors.newFixedThreadPool(dispatcherThreads, r -> {
+                Thread t = new Thread(r, "vm-events-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return dispatcher;
+    }
+
+    private class Subscriber implements Runnable {
+        private final Long teamId;
+        private final SseEmitter emitter;
+        private final LinkedHashMap<Long, VmEventDTO> pending = new LinkedHashMap<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private boolean overflowed = false;
+
+        private Subscriber(Long teamId, SseEmitter emitter) {
+            this.teamId = teamId;
+            this.emitter = emitter;
+        }
+
+        private void offer(VmEventDTO event) {
+            synchronized (this) {
+                //only the latest event of each vm is kept
+                pending.remove(event.getVmId());
+                if(overflowed || pending.size() >= bufferSize) {
+                    pending.clear();
+                    overflowed = true;
+                } else
+                    pending.put(event.getVmId(), event);
+            }
+            if(scheduled.compareAndSet(false, true))
+                dispatcher().execute(this);
+        }
+
+        @Override
+        public void run() {
+            do {
+                List<VmEventDTO> batch;
+                synchronized (this) {
+                    if(overflowed) {
+                        VmEventDTO resync = new VmEventDTO();
+                        resync.setType(VmEventDTO.Type.RESYNC);
+                        resync.setTeamId(teamId);
+                        batch = Collections.singletonList(resync);
+                        overflowed = false;
+                    } else
+                        batch = new ArrayList<>(pending.values());
+                    pending.clear();
+                }
+
+                try {
+                    for(VmEventDTO event : batch)
+                        emitter.send(SseEmitter.event().name(event.getType().name()).data(event));
+                } catch (IOException | IllegalStateException e) {
+                    unsubscribe(this);
+                    return;
+                }
+
+                scheduled.set(false);
+            } while(hasPending() && scheduled.compareAndSet(false, true));
+        }
+
+        private synchronized boolean hasPending() {
+            return overflowed || !pending.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import it.polito.ai.virtualLabs.entities.Vm;
+import it.polito.ai.virtualLabs.entities.VmModel;
+import it.polito.ai.virtualLabs.repositories.VmRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Powers off the active vms that stopped receiving heartbeats. Every active vm has one entry
+ * in a delay queue expiring when it could first be idle: a sweep only looks at the expired
+ * entries, re-queues the ones that received a heartbeat meanwhile and powers off the others
+ * with a single update.
+ */
+@Component
+public class VmIdleReaper {
+
+    @Value("${virtuallabs.vm.idle-timeout:30}")
+    private int defaultIdleTimeout = 30; // minutes
+
+    @Autowired
+    VmRepository vmRepository;
+    @Autowired
+    @Lazy
+    VmBulkPowerOff vmBulkPowerOff;
+
+    private final Map<Long, Watch> watches = new ConcurrentHashMap<>();
+    private final DelayQueue<IdleCheck> checks = new DelayQueue<>();
+
+    public void watch(Long vmId, VmModel vmModel) {
+        long timeout = TimeUnit.MINUTES.toMillis(vmModel.getIdleTimeout() > 0 ? vmModel.getIdleTimeout() : defaultIdleTimeout);
+        Watch watch = new Watch(vmId, timeout);
+        watches.put(vmId, watch);
+        checks.offer(new IdleCheck(watch, watch.lastHeartbeat + timeout));
+    }
+
+    public void unwatch(Long vmId) {
+        //the pending check is discarded when it expires
+        watches.remove(vmId);
+    }
+
+    public void recordHeartbeat(Long vmId) {
+        Watch watch = watches.get(vmId);
+        if(watch != null)
+            watch.lastHeartbeat = System.currentTimeMillis();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void watchActiveVms() {
+        for(Vm vm : vmRepository.findAllByActiveTrue())
+            watch(vm.getId(), vm.getVmModel());
+    }
+
+    @Scheduled(fixedDelayString = "${virtuallabs.vm.idle-reaper.interval:60000}")
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        List<Watch> idleWatches = new ArrayList<>();
+
+        IdleCheck check;
+        while((check = checks.poll()) != null) {
+            Watch watch = check.watch;
+            if(watches.get(watch.vmId) != watch)
+                continue;
+
+            long deadline = watch.lastHeartbeat + watch.timeout;
+            if(deadline <= now)
+                idleWatches.add(watch);
+            else
+                checks.offer(new IdleCheck(watch, deadline));
+        }
+
+        if(idleWatches.isEmpty())
+            return;
+
+        try {
+            vmBulkPowerOff.powerOff(idleWatches.stream().map(w -> w.vmId).collect(Collectors.toList()));
+            idleWatches.forEach(w -> watches.remove(w.vmId, w));
+        } catch (RuntimeException e) {
+            //retry at the next sweep
+            System.err.println(e.getMessage());
+            idleWatches.forEach(w -> checks.offer(new IdleCheck(w, now)));
+        }
+    }
+
+    private static class Watch {
+        private final Long vmId;
+        private final long timeout;
+        private volatile long lastHeartbeat = System.currentTimeMillis();
+
+        private Watch(Long vmId, long timeout) {
+            this.vmId = vmId;
+            this.timeout = timeout;
+        }
+    }
+
+    private static class IdleCheck implements Delayed {
+        private final Watch watch;
+        private final long deadline;
+
+        private IdleCheck(Watch watch, long deadline) {
+            this.watch = watch;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(deadline, ((IdleCheck) o).deadline);
+        }
+    }
+}
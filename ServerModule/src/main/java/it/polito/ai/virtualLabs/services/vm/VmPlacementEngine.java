@@ -0,0 +1,292 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import it.polito.ai.virtualLabs.dtos.HostPoolMetricsDTO;
+import it.polito.ai.virtualLabs.entities.Vm;
+import it.polito.ai.virtualLabs.repositories.VmRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+import static it.polito.ai.virtualLabs.services.vm.TransactionActions.afterCommit;
+import static it.polito.ai.virtualLabs.services.vm.TransactionActions.onRollback;
+
+/**
+ * Simulated pool of physical hosts the active vms run on. A vm is placed on the first host
+ * that fits it when it is powered on; the consolidation pass repacks all the placements with
+ * first-fit-decreasing and adopts the result when it frees at least one host.
+ */
+@Component
+public class VmPlacementEngine {
+
+    // comma separated list of name:vCPU:ram:disk, when empty the default hosts are used
+    @Value("${virtuallabs.hosts:}")
+    private String hostsSpec = "";
+
+    @Value("${virtuallabs.hosts.default-count:8}")
+    private int defaultHostCount = 8;
+
+    @Value("${virtuallabs.hosts.default-capacity:64:256:16384}")
+    private String defaultHostCapacity = "64:256:16384";
+
+    @Autowired
+    VmRepository vmRepository;
+
+    private final List<Host> hosts = new ArrayList<>();
+    private final Map<Long, Placement> placements = new HashMap<>();
+    private long rejectedPlacements = 0;
+    private long migrations = 0;
+
+    @PostConstruct
+    public void init() {
+        if(hostsSpec.trim().isEmpty()) {
+            for(int i = 1; i <= defaultHostCount; i++)
+                hosts.add(parseHost("host-" + i + ":" + defaultHostCapacity));
+        } else {
+            for(String spec : hostsSpec.split(","))
+                hosts.add(parseHost(spec.trim()));
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void placeActiveVms() {
+        List<Placement> active = new ArrayList<>();
+        for(Vm vm : vmRepository.findAllByActiveTrue())
+            active.add(new Placement(vm.getId(), vm.getVCPU(), vm.getRAM(), vm.getDisk()));
+
+        for(Placement p : firstFitDecreasing(active, hosts)) {
+            if(p.host == null) {
+                rejectedPlacements++;
+                continue;
+            }
+            p.host.allocate(p);
+            placements.put(p.vmId, p);
+        }
+    }
+
+    public boolean place(Long vmId, int vCPU, int ram, int disk) {
+        Placement placement = new Placement(vmId, vCPU, ram, disk);
+        synchronized (this) {
+            if(placements.containsKey(vmId))
+                return true;
+
+            placement.uncommitted = true;
+            if(!allocate(placement, null))
+                return false;
+        }
+        //only this placement is undone: once released it may have been replaced by another one
+        onRollback(() -> free(placement));
+        afterCommit(() -> {
+            synchronized (this) {
+                placement.uncommitted = false;
+            }
+        });
+        return true;
+    }
+
+    public void release(Long vmId) {
+        Placement placement;
+        boolean committed;
+        synchronized (this) {
+            placement = free(vmId);
+            //a placement made by a transaction still open is undone by its own rollback action
+            committed = placement != null && !placement.uncommitted;
+        }
+        if(committed)
+            onRollback(() -> {
+                synchronized (this) {
+                    allocate(new Placement(vmId, placement.vCPU, placement.ram, placement.disk), placement.host);
+                }
+            });
+    }
+
+    // puts the vm on the preferred host if it still fits there, otherwise on the first host that fits
+    private boolean allocate(Placement placement, Host preferred) {
+        Optional<Host> host = preferred != null && preferred.fits(placement) ? Optional.of(preferred)
+                : hosts.stream().filter(h -> h.fits(placement)).findFirst();
+        if(!host.isPresent()) {
+            rejectedPlacements++;
+            return false;
+        }
+        host.get().allocate(placement);
+        placements.put(placement.vmId, placement);
+        return true;
+    }
+
+    private synchronized void free(Placement placement) {
+        if(placements.get(placement.vmId) == placement)
+            free(placement.vmId);
+    }
+
+    private synchronized Placement free(Long vmId) {
+        Placement placement = placements.remove(vmId);
+        if(placement == null)
+            return null;
+        Host host = placement.host;
+        host.free(placement);
+        placement.host = host;
+        return placement;
+    }
+
+    public synchronized boolean fits(int vCPU, int ram, int disk) {
+        Placement placement = new Placement(null, vCPU, ram, disk);
+        return hosts.stream().anyMatch(h -> h.fits(placement));
+    }
+
+    @Scheduled(fixedDelayString = "${virtuallabs.hosts.consolidation-interval:600000}")
+    public synchronized void consolidate() {
+        List<Host> candidates = new ArrayList<>();
+        for(Host h : hosts)
+            candidates.add(new Host(h.name, h.vCPU, h.ram, h.disk));
+
+        List<Placement> repacked = firstFitDecreasing(placements.values(), candidates);
+        if(repacked.stream().anyMatch(p -> p.host == null) || usedHosts(candidates) >= usedHosts(hosts))
+            return;
+
+        //adopt the new layout, every vm that changes host counts as a migration
+        Map<String, Host> byName = new HashMap<>();
+        hosts.forEach(h -> {
+            h.clear();
+            byName.put(h.name, h);
+        });
+        for(Placement p : repacked) {
+            Placement current = placements.get(p.vmId);
+            Host target = byName.get(p.host.name);
+            if(current.host != target)
+                migrations++;
+            current.host = null;
+            target.allocate(current);
+        }
+    }
+
+    public synchronized HostPoolMetricsDTO getMetrics() {
+        HostPoolMetricsDTO metrics = new HostPoolMetricsDTO();
+        metrics.setHosts(hosts.size());
+        metrics.setUsedHosts(usedHosts(hosts));
+        metrics.setPlacedVms(placements.size());
+        metrics.setVCPUDensity(density(h -> h.vCPU, h -> h.usedVCPU));
+        metrics.setRamDensity(density(h -> h.ram, h -> h.usedRam));
+        metrics.setDiskDensity(density(h -> h.disk, h -> h.usedDisk));
+        metrics.setVCPUFragmentation(fragmentation(h -> h.vCPU - h.usedVCPU));
+        metrics.setRamFragmentation(fragmentation(h -> h.ram - h.usedRam));
+        metrics.setDiskFragmentation(fragmentation(h -> h.disk - h.usedDisk));
+        metrics.setRejectedPlacements(rejectedPlacements);
+        metrics.setMigrations(migrations);
+        return metrics;
+    }
+
+    private List<Placement> firstFitDecreasing(Collection<Placement> items, List<Host> bins) {
+        int maxVCPU = bins.stream().mapToInt(h -> h.vCPU).max().orElse(1);
+        int maxRam = bins.stream().mapToInt(h -> h.ram).max().orElse(1);
+        int maxDisk = bins.stream().mapToInt(h -> h.disk).max().orElse(1);
+
+        //biggest vms first, measured on their dominant resource
+        List<Placement> sorted = new ArrayList<>();
+        for(Placement p : items)
+            sorted.add(new Placement(p.vmId, p.vCPU, p.ram, p.disk));
+        sorted.sort(Comparator.comparingDouble((Placement p) -> Math.max((double) p.vCPU / maxVCPU,
+                Math.max((double) p.ram / maxRam, (double) p.disk / maxDisk))).reversed());
+
+        for(Placement p : sorted)
+            bins.stream().filter(h -> h.fits(p)).findFirst().ifPresent(h -> h.allocate(p));
+        return sorted;
+    }
+
+    private int usedHosts(List<Host> pool) {
+        return (int) pool.stream().filter(h -> h.vms > 0).count();
+    }
+
+    // used share of the capacity of the hosts running at least one vm
+    private double density(ToIntFunction<Host> capacity, ToIntFunction<Host> used) {
+        long totCapacity = 0, totUsed = 0;
+        for(Host h : hosts) {
+            if(h.vms == 0)
+                continue;
+            totCapacity += capacity.applyAsInt(h);
+            totUsed += used.applyAsInt(h);
+        }
+        return totCapacity == 0 ? 0 : (double) totUsed / totCapacity;
+    }
+
+    // 0 when all the free capacity is on a single host, close to 1 when it is scattered
+    private double fragmentation(ToIntFunction<Host> free) {
+        long totFree = 0, maxFree = 0;
+        for(Host h : hosts) {
+            int f = free.applyAsInt(h);
+            totFree += f;
+            maxFree = Math.max(maxFree, f);
+        }
+        return totFree == 0 ? 0 : 1 - (double) maxFree / totFree;
+    }
+
+    private Host parseHost(String spec) {
+        String[] fields = spec.split(":");
+        if(fields.length != 4)
+            throw new IllegalArgumentException("Invalid host specification '" + spec + "'");
+        return new Host(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+    }
+
+    private static class Host {
+        private final String name;
+        private final int vCPU;
+        private final int ram;
+        private final int disk;
+        private int usedVCPU;
+        private int usedRam;
+        private int usedDisk;
+        private int vms;
+
+        private Host(String name, int vCPU, int ram, int disk) {
+            this.name = name;
+            this.vCPU = vCPU;
+            this.ram = ram;
+            this.disk = disk;
+        }
+
+        private boolean fits(Placement p) {
+            return usedVCPU + p.vCPU <= vCPU && usedRam + p.ram <= ram && usedDisk + p.disk <= disk;
+        }
+
+        private void allocate(Placement p) {
+            usedVCPU += p.vCPU;
+            usedRam += p.ram;
+            usedDisk += p.disk;
+            vms++;
+            p.host = this;
+        }
+
+        private void free(Placement p) {
+            usedVCPU -= p.vCPU;
+            usedRam -= p.ram;
+            usedDisk -= p.disk;
+            vms--;
+            p.host = null;
+        }
+
+        private void clear() {
+            usedVCPU = usedRam = usedDisk = vms = 0;
+        }
+    }
+
+    private static class Placement {
+        private final Long vmId;
+        private final int vCPU;
+        private final int ram;
+        private final int disk;
+        private Host host;
+        private boolean uncommitted;
+
+        private Placement(Long vmId, int vCPU, int ram, int disk) {
+            this.vmId = vmId;
+            this.vCPU = vCPU;
+            this.ram = ram;
+            this.disk = disk;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Backend running the vms. Every operation returns immediately, the returned future completes
+ * when the backend is done with it. A new operation on a vm supersedes the one still pending
+ * on it, whose future is cancelled.
+ */
+public interface VmProvider {
+    CompletableFuture<Void> create(Long vmId, String os, int vCPU, int ram, int disk);
+    CompletableFuture<Void> start(Long vmId);
+    CompletableFuture<Void> stop(Long vmId);
+    CompletableFuture<Void> resize(Long vmId, int vCPU, int ram, int disk);
+    CompletableFuture<Void> delete(Long vmId);
+}
@@ -0,0 +1,92 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import it.polito.ai.virtualLabs.entities.Vm;
+import it.polito.ai.virtualLabs.repositories.VmRepository;
+import it.polito.ai.virtualLabs.services.VmService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static it.polito.ai.virtualLabs.services.vm.TransactionActions.afterCommit;
+
+/**
+ * Forwards the vm lifecycle operations to the {@link VmProvider} once the transaction that
+ * requested them commits, so request threads never wait for the backend. Start and stop
+ * completions are reported back to the {@link VmService}, which moves the vm out of its
+ * transitional status.
+ */
+@Component
+public class VmProvisioner {
+
+    @Autowired
+    VmProvider vmProvider;
+    @Autowired
+    VmRepository vmRepository;
+    @Autowired
+    @Lazy
+    VmService vmService;
+
+    public void create(Long vmId, String os, int vCPU, int ram, int disk) {
+        afterCommit(() -> report(vmId, "create", vmProvider.create(vmId, os, vCPU, ram, disk)));
+    }
+
+    public void start(Long vmId) {
+        afterCommit(() -> complete(vmId, Vm.VmStatus.STARTING, vmProvider.start(vmId)));
+    }
+
+    public void stop(Long vmId) {
+        afterCommit(() -> complete(vmId, Vm.VmStatus.STOPPING, vmProvider.stop(vmId)));
+    }
+
+    public void resize(Long vmId, int vCPU, int ram, int disk) {
+        afterCommit(() -> report(vmId, "resize", vmProvider.resize(vmId, vCPU, ram, disk)));
+    }
+
+    public void delete(Long vmId) {
+        afterCommit(() -> report(vmId, "delete", vmProvider.delete(vmId)));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeTransitions() {
+        //transitions interrupted by a restart are requested again
+        for(Vm vm : vmRepository.findAllByStatusIn(Arrays.asList(Vm.VmStatus.STARTING, Vm.VmStatus.STOPPING))) {
+            if(vm.getStatus() == Vm.VmStatus.STARTING)
+                start(vm.getId());
+            else
+                stop(vm.getId());
+        }
+    }
+
+    private void complete(Long vmId, Vm.VmStatus from, CompletableFuture<Void> operation) {
+        operation.whenComplete((result, ex) -> {
+            //a superseded operation leaves the vm to the one that replaced it
+            if(unwrap(ex) instanceof CancellationException)
+                return;
+            if(ex != null)
+                System.err.println("Vm " + vmId + " failed leaving " + from + ": " + unwrap(ex).getMessage());
+            try {
+                vmService.completeVmTransition(vmId, from, ex == null);
+            } catch (RuntimeException e) {
+                System.err.println("Unable to complete the transition of vm " + vmId + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void report(Long vmId, String operationName, CompletableFuture<Void> operation) {
+        operation.whenComplete((result, ex) -> {
+            if(ex != null && !(unwrap(ex) instanceof CancellationException))
+                System.err.println("Unable to " + operationName + " vm " + vmId + ": " + unwrap(ex).getMessage());
+        });
+    }
+
+    private Throwable unwrap(Throwable ex) {
+        return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    }
+}
@@ -0,0 +1,87 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static it.polito.ai.virtualLabs.services.vm.TransactionActions.afterCommit;
+
+/**
+ * In-memory view of the power state of every known vm, together with the usernames
+ * allowed to see it. It lets the heartbeat be answered without touching the database.
+ * Changes are applied once the transaction making them commits, so a rolled back change
+ * is never visible and a concurrent miss cannot cache a state that was not committed.
+ */
+@Component
+public class VmStateRegistry {
+
+    private final Map<Long, VmState> states = new ConcurrentHashMap<>();
+
+    public Optional<VmState> get(Long vmId) {
+        return Optional.ofNullable(states.get(vmId));
+    }
+
+    public void register(Long vmId, Long teamId, String courseName, boolean active, Collection<String> viewers) {
+        VmState state = new VmState(teamId, courseName, active, viewers);
+        afterCommit(() -> states.put(vmId, state));
+    }
+
+    // for a state read from committed data outside of a transaction
+    public VmState registerIfAbsent(Long vmId, Long teamId, String courseName, boolean active, Collection<String> viewers) {
+        VmState state = new VmState(teamId, courseName, active, viewers);
+        VmState current = states.putIfAbsent(vmId, state);
+        return current != null ? current : state;
+    }
+
+    public void setActive(Long vmId, boolean active) {
+        afterCommit(() -> {
+            VmState state = states.get(vmId);
+            if(state != null)
+                state.active = active;
+        });
+    }
+
+    public void remove(Long vmId) {
+        afterCommit(() -> states.remove(vmId));
+    }
+
+    // membership changes make the precomputed access sets stale: they are rebuilt on the next miss
+    public void evictTeam(Long teamId) {
+        afterCommit(() -> states.values().removeIf(s -> s.teamId.equals(teamId)));
+    }
+
+    public void evictCourse(String courseName) {
+        afterCommit(() -> states.values().removeIf(s -> s.courseName.equals(courseName)));
+    }
+
+    public static class VmState {
+        private final Long teamId;
+        private final String courseName;
+        private final Set<String> viewers;
+        private volatile boolean active;
+
+        private VmState(Long teamId, String courseName, boolean active, Collection<String> viewers) {
+            this.teamId = teamId;
+            this.courseName = courseName;
+            this.active = active;
+            this.viewers = Collections.unmodifiableSet(new HashSet<>(viewers));
+        }
+
+        public Long getTeamId() {
+            return teamId;
+        }
+
+        public String getCourseName() {
+            return courseName;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public boolean canView(String username) {
+            return viewers.contains(username);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import it.polito.ai.virtualLabs.dtos.VmEventDTO;
+import it.polito.ai.virtualLabs.entities.*;
+import it.polito.ai.virtualLabs.repositories.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.transaction.Transactional;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Accounts the resources consumed by the vms. Every lifecycle change is appended to the power
+ * event log in the same transaction that makes it; a periodic pass then replays only the events
+ * logged since its cursor on top of the last known state of every vm and adds the vCPU-hours,
+ * RAM GB-hours and disk GB-days consumed meanwhile to hourly rollups per team and vm model.
+ */
+@Component
+public class VmUsageAccounting {
+
+    private static final String CURSOR = "vm-usage";
+
+    // events younger than this may belong to transactions not committed yet
+    @Value("${virtuallabs.vm.usage.grace-period:60}")
+    private int gracePeriod = 60; // seconds
+
+    @Value("${virtuallabs.vm.usage.chunk-size:1000}")
+    private int chunkSize = 1000;
+
+    @Autowired
+    VmPowerEventRepository vmPowerEventRepository;
+    @Autowired
+    VmUsageMeterRepository vmUsageMeterRepository;
+    @Autowired
+    VmUsageCursorRepository vmUsageCursorRepository;
+    @Autowired
+    VmUsageRollupRepository vmUsageRollupRepository;
+    @Autowired
+    VmRepository vmRepository;
+
+    // runs inside the transaction publishing the event
+    @EventListener
+    public void onVmEvent(VmEventDTO event) {
+        VmPowerEvent.EventType type;
+        switch(event.getType()) {
+            case CREATED:
+                type = VmPowerEvent.EventType.CREATED;
+                break;
+            case RESOURCES_EDITED:
+                type = VmPowerEvent.EventType.RESIZED;
+                break;
+            case POWERED_ON:
+                type = VmPowerEvent.EventType.POWERED_ON;
+                break;
+            case POWERED_OFF:
+                type = VmPowerEvent.EventType.POWERED_OFF;
+                break;
+            case REMOVED:
+                type = VmPowerEvent.EventType.REMOVED;
+                break;
+            default:
+                return;
+        }
+        vmPowerEventRepository.save(new VmPowerEvent(type, event.getVmId(), event.getTeamId(), event.getCourseName(),
+                event.getVmModelId(), event.getVCPU(), event.getRAM(), event.getDisk(), event.getTimestamp()));
+    }
+
+    @Scheduled(fixedDelayString = "${virtuallabs.vm.usage.interval:300000}")
+    @Transactional
+    public void aggregate() {
+        LocalDateTime now = LocalDateTime.now();
+        Optional<VmUsageCursor> cursorOpt = vmUsageCursorRepository.findById(CURSOR);
+        if(!cursorOpt.isPresent()) {
+            start(now);
+            return;
+        }
+
+        VmUsageCursor cursor = cursorOpt.get();
+        LocalDateTime horizon = now.minusSeconds(gracePeriod);
+        Map<Long, VmUsageMeter> meters = vmUsageMeterRepository.findAll()
+                .stream()
+                .collect(Collectors.toMap(VmUsageMeter::getVmId, Function.identity()));
+        Set<Long> removed = new HashSet<>();
+        Map<RollupKey, double[]> usage = new HashMap<>();
+
+        List<VmPowerEvent> events;
+        do {
+            events = vmPowerEventRepository.findAfter(cursor.getLastEventTimestamp(), cursor.getLastEventId(),
+                    horizon, PageRequest.of(0, chunkSize));
+            for(VmPowerEvent event : events) {
+                accrue(meters.values(), cursor.getAccountedUntil(), event.getTimestamp(), usage);
+                if(event.getTimestamp().isAfter(cursor.getAccountedUntil()))
+                    cursor.setAccountedUntil(event.getTimestamp());
+                apply(meters, removed, event);
+                cursor.setLastEventTimestamp(event.getTimestamp());
+                cursor.setLastEventId(event.getId());
+            }
+        } while(events.size() == chunkSize);
+
+        accrue(meters.values(), cursor.getAccountedUntil(), horizon, usage);
+        if(horizon.isAfter(cursor.getAccountedUntil()))
+            cursor.setAccountedUntil(horizon);
+
+        //vms deleted together with their team or vm model leave no event behind
+        Set<Long> existing = new HashSet<>(vmRepository.getAllVmIds());
+        meters.keySet().stream()
+                .filter(id -> !existing.contains(id))
+                .collect(Collectors.toList())
+                .forEach(id -> {
+                    meters.remove(id);
+                    removed.add(id);
+                });
+
+        removed.stream().filter(vmUsageMeterRepository::existsById).forEach(vmUsageMeterRepository::deleteById);
+        vmUsageMeterRepository.saveAll(meters.values());
+        mergeRollups(usage);
+        vmUsageCursorRepository.save(cursor);
+    }
+
+    // the first pass takes the current vms as they are, earlier events are not accounted
+    private void start(LocalDateTime now) {
+        List<VmUsageMeter> meters = new ArrayList<>();
+        for(Vm vm : vmRepository.findAll()) {
+            VmUsageMeter meter = new VmUsageMeter();
+            meter.setVmId(vm.getId());
+            meter.setTeamId(vm.getTeam().getId());
+            meter.setCourseName(vm.getTeam().getCourse().getName());
+            meter.setVmModelId(vm.getVmModel().getId());
+            meter.setActive(vm.isActive());
+            meter.setVCPU(vm.getVCPU());
+            meter.setRAM(vm.getRAM());
+            meter.setDisk(vm.getDisk());
+            meters.add(meter);
+        }
+        vmUsageMeterRepository.saveAll(meters);
+
+        VmUsageCursor cursor = new VmUsageCursor();
+        cursor.setName(CURSOR);
+        cursor.setAccountedUntil(now);
+        cursor.setLastEventTimestamp(now);
+        cursor.setLastEventId(Long.MAX_VALUE);
+        vmUsageCursorRepository.save(cursor);
+    }
+
+    private void apply(Map<Long, VmUsageMeter> meters, Set<Long> removed, VmPowerEvent event) {
+        if(event.getType() == VmPowerEvent.EventType.REMOVED) {
+            meters.remove(event.getVmId());
+            removed.add(event.getVmId());
+            return;
+        }
+
+        VmUsageMeter meter = meters.computeIfAbsent(event.getVmId(), id -> {
+            VmUsageMeter m = new VmUsageMeter();
+            m.setVmId(id);
+            return m;
+        });
+        removed.remove(event.getVmId());
+        meter.setTeamId(event.getTeamId());
+        meter.setCourseName(event.getCourseName());
+        meter.setVmModelId(event.getVmModelId());
+        meter.setVCPU(event.getVCPU());
+        meter.setRAM(event.getRAM());
+        meter.setDisk(event.getDisk());
+        if(event.getType() == VmPowerEvent.EventType.POWERED_ON)
+            meter.setActive(true);
+        else if(event.getType() == VmPowerEvent.EventType.POWERED_OFF)
+            meter.setActive(false);
+    }
+
+    // adds the usage between from and to, split by hour
+    private void accrue(Collection<VmUsageMeter> meters, LocalDateTime from, LocalDateTime to, Map<RollupKey, double[]> usage) {
+        LocalDateTime t = from;
+        while(t.isBefore(to)) {
+            LocalDateTime bucket = t.truncatedTo(ChronoUnit.HOURS);
+            LocalDateTime end = bucket.plusHours(1).isBefore(to) ? bucket.plusHours(1) : to;
+            double hours = Duration.between(t, end).toMillis() / 3_600_000.0;
+            for(VmUsageMeter meter : meters) {
+                double[] sums = usage.computeIfAbsent(new RollupKey(meter.getTeamId(), meter.getCourseName(),
+                        meter.getVmModelId(), bucket), k -> new double[3]);
+                if(meter.isActive()) {
+                    sums[0] += meter.getVCPU() * hours;
+                    sums[1] += meter.getRAM() * hours;
+                }
+                sums[2] += meter.getDisk() * hours / 24;
+            }
+            t = end;
+        }
+    }
+
+    private void mergeRollups(Map<RollupKey, double[]> usage) {
+        if(usage.isEmpty())
+            return;
+
+        Set<LocalDateTime> buckets = usage.keySet().stream().map(k -> k.bucketStart).collect(Collectors.toSet());
+        Map<RollupKey, VmUsageRollup> rollups = vmUsageRollupRepository.findAllByBucketStartIn(buckets)
+                .stream()
+                .collect(Collectors.toMap(r -> new RollupKey(r.getTeamId(), r.getCourseName(), r.getVmModelId(), r.getBucketStart()),
+                        Function.identity()));
+
+        usage.forEach((key, sums) -> {
+            VmUsageRollup rollup = rollups.computeIfAbsent(key, k -> {
+                VmUsageRollup r = new VmUsageRollup();
+                r.setTeamId(k.teamId);
+                r.setCourseName(k.courseName);
+                r.setVmModelId(k.vmModelId);
+                r.setBucketStart(k.bucketStart);
+                return r;
+            });
+            rollup.setVCPUHours(rollup.getVCPUHours() + sums[0]);
+            rollup.setRamGBHours(rollup.getRamGBHours() + sums[1]);
+            rollup.setDiskGBDays(rollup.getDiskGBDays() + sums[2]);
+        });
+        vmUsageRollupRepository.saveAll(rollups.values());
+    }
+
+    private static class RollupKey {
+        private final Long teamId;
+        private final String courseName;
+        private final Long vmModelId;
+        private final LocalDateTime bucketStart;
+
+        private RollupKey(Long teamId, String courseName, Long vmModelId, LocalDateTime bucketStart) {
+            this.teamId = teamId;
+            this.courseName = courseName;
+            this.vmModelId = vmModelId;
+            this.bucketStart = bucketStart;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o)
+                return true;
+            if(!(o instanceof RollupKey))
+                return false;
+            RollupKey other = (RollupKey) o;
+            return Objects.equals(teamId, other.teamId) && Objects.equals(vmModelId, other.vmModelId) &&
+                    Objects.equals(bucketStart, other.bucketStart);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(teamId, vmModelId, bucketStart);
+        }
+    }
+}
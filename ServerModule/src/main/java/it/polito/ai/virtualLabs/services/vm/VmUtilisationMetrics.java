@@ -0,0 +1,276 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import it.polito.ai.virtualLabs.dtos.VmEventDTO;
+import it.polito.ai.virtualLabs.dtos.VmMetricsDTO;
+import it.polito.ai.virtualLabs.repositories.VmRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+import static it.polito.ai.virtualLabs.services.vm.TransactionActions.afterCommit;
+
+/**
+ * Vms and active resources of every course and vm model, kept up to date from the committed vm
+ * events. The vms of a course are summed once, the first time the course is seen; after that
+ * reads never touch the database. Every course also keeps a ring buffer with one slot per
+ * minute of the last 24 hours holding the peak of its active resources in that minute.
+ */
+@Component
+public class VmUtilisationMetrics {
+
+    public static final int HISTORY_MINUTES = 24 * 60;
+
+    @Autowired
+    VmRepository vmRepository;
+
+    private final Map<String, CourseMetrics> courses = new ConcurrentHashMap<>();
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onVmEvent(VmEventDTO event) {
+        //applied even while the course is being loaded: the load skips the vms changed meanwhile
+        metricsOf(event.getCourseName()).apply(event);
+    }
+
+    public VmMetricsDTO getMetrics(String courseName, int minutes) {
+        CourseMetrics metrics = metricsOf(courseName);
+
+        VmMetricsDTO dto = new VmMetricsDTO();
+        dto.setCourseName(courseName);
+        dto.setTotal(metrics.total.toUsage());
+        metrics.vmModels.forEach((id, gauges) -> dto.getVmModels().put(id, gauges.toUsage()));
+
+        //walk back from now: a minute without changes holds the value the next one opened with
+        long now = currentMinute();
+        int vms = metrics.total.activeVms.get();
+        long vCPU = metrics.total.activeVCPU.get(), ram = metrics.total.activeRam.get();
+        VmMetricsDTO.Sample[] samples = new VmMetricsDTO.Sample[Math.max(0, Math.min(minutes, HISTORY_MINUTES))];
+        for(int i = 0; i < samples.length; i++) {
+            long minute = now - i;
+            Sample slot = metrics.history.get((int) (minute % HISTORY_MINUTES));
+            VmMetricsDTO.Sample sample = new VmMetricsDTO.Sample();
+            sample.setMinute(LocalDateTime.ofInstant(Instant.ofEpochMilli(TimeUnit.MINUTES.toMillis(minute)), ZoneId.systemDefault()));
+            if(slot != null && slot.minute == minute) {
+                sample.setActiveVms(Math.max(vms, slot.peakVms));
+                sample.setActiveVCPU(Math.max(vCPU, slot.peakVCPU));
+                sample.setActiveRAM(Math.max(ram, slot.peakRam));
+                vms = slot.openingVms;
+                vCPU = slot.openingVCPU;
+                ram = slot.openingRam;
+            } else {
+                sample.setActiveVms(vms);
+                sample.setActiveVCPU(vCPU);
+                sample.setActiveRAM(ram);
+            }
+            samples[samples.length - 1 - i] = sample;
+        }
+        for(VmMetricsDTO.Sample sample : samples)
+            dto.getHistory().add(sample);
+        return dto;
+    }
+
+    // the metrics are reloaded from committed data, so they are dropped only once the change commits
+    public void evictCourse(String courseName) {
+        afterCommit(() -> courses.remove(courseName));
+    }
+
+    private CourseMetrics metricsOf(String courseName) {
+        CourseMetrics metrics = courses.computeIfAbsent(courseName, c -> new CourseMetrics());
+        metrics.load(() -> vmRepository.getVmUsageByCourseName(courseName));
+        return metrics;
+    }
+
+    private static long currentMinute() {
+        return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+    }
+
+    // the gauges are only changed holding the lock of the course, they are read without it
+    private static class CourseMetrics {
+        private final Gauges total = new Gauges();
+        private final Map<Long, Gauges> vmModels = new ConcurrentHashMap<>();
+        private final AtomicReferenceArray<Sample> history = new AtomicReferenceArray<>(HISTORY_MINUTES);
+        // last known state of every vm, so that an event and the load never count a change twice
+        private final Map<Long, VmState> vms = new HashMap<>();
+        // vms removed while the course is being loaded, the load may still read them
+        private final Set<Long> removed = new HashSet<>();
+        private final Object loadLock = new Object();
+        private volatile boolean loaded;
+
+        private Gauges vmModel(Long vmModelId) {
+            return vmModels.computeIfAbsent(vmModelId, id -> new Gauges());
+        }
+
+        private void load(Supplier<List<Object[]>> query) {
+            if(loaded)
+                return;
+            synchronized (loadLock) {
+                if(loaded)
+                    return;
+                //read without the course lock, the events keep being applied meanwhile
+                List<Object[]> rows = query.get();
+                synchronized (this) {
+                    //a vm already changed by an event is newer than what was read
+                    for(Object[] row : rows) {
+                        Long vmId = (Long) row[0];
+                        if(!vms.containsKey(vmId) && !removed.contains(vmId))
+                            add(vmId, new VmState((Long) row[1], (Integer) row[3], (Integer) row[4], (Integer) row[5]), (Boolean) row[2], false);
+                    }
+                    removed.clear();
+                    loaded = true;
+                }
+            }
+        }
+
+        private synchronized void apply(VmEventDTO event) {
+            Long vmId = event.getVmId();
+            VmState vm = vms.get(vmId);
+            switch(event.getType()) {
+                case CREATED:
+                    if(vm == null)
+                        add(vmId, new VmState(event), false, true);
+                    break;
+                case REMOVED:
+                    if(vm != null) {
+                        if(vm.active)
+                            activate(vm, -1, true);
+                        vms.remove(vmId);
+                        total.vms.decrementAndGet();
+                        vmModel(vm.vmModelId).vms.decrementAndGet();
+                    }
+                    if(!loaded)
+                        removed.add(vmId);
+                    break;
+                case POWERED_ON:
+                case POWERED_OFF:
+                    boolean active = event.getType() == VmEventDTO.Type.POWERED_ON;
+                    if(vm == null)
+                        add(vmId, new VmState(event), active, true);
+                    else if(vm.active != active)
+                        activate(vm, active ? 1 : -1, true);
+                    break;
+                case RESOURCES_EDITED:
+                    if(vm == null)
+                        add(vmId, new VmState(event), false, true);
+                    else if(!vm.active)
+                        vms.put(vmId, new VmState(event));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void add(Long vmId, VmState vm, boolean active, boolean recorded) {
+            vms.put(vmId, vm);
+            total.vms.incrementAndGet();
+            vmModel(vm.vmModelId).vms.incrementAndGet();
+            if(active)
+                activate(vm, 1, recorded);
+        }
+
+        private void activate(VmState vm, int sign, boolean recorded) {
+            vm.active = sign > 0;
+            vmModel(vm.vmModelId).activate(sign, vm.vCPU, vm.ram, vm.disk);
+            long[] change = total.activate(sign, vm.vCPU, vm.ram, vm.disk);
+            if(recorded)
+                record(change);
+        }
+
+        // change holds the variation just applied to every value followed by the value itself
+        private void record(long[] change) {
+            long minute = currentMinute();
+            history.updateAndGet((int) (minute % HISTORY_MINUTES), slot -> slot != null && slot.minute == minute ?
+                    slot.peak(change) : new Sample(minute, change));
+        }
+    }
+
+    private static class VmState {
+        private final Long vmModelId;
+        private final int vCPU;
+        private final int ram;
+        private final int disk;
+        private boolean active;
+
+        private VmState(Long vmModelId, int vCPU, int ram, int disk) {
+            this.vmModelId = vmModelId;
+            this.vCPU = vCPU;
+            this.ram = ram;
+            this.disk = disk;
+        }
+
+        private VmState(VmEventDTO event) {
+            this(event.getVmModelId(), event.getVCPU(), event.getRAM(), event.getDisk());
+        }
+    }
+
+    private static class Gauges {
+        private final AtomicInteger vms = new AtomicInteger();
+        private final AtomicInteger activeVms = new AtomicInteger();
+        private final AtomicLong activeVCPU = new AtomicLong();
+        private final AtomicLong activeRam = new AtomicLong();
+        private final AtomicLong activeDisk = new AtomicLong();
+
+        // returns the deltas and the updated active vms, vCPU and ram
+        private long[] activate(int sign, int vCPU, int ram, int disk) {
+            activeDisk.addAndGet(sign * disk);
+            return new long[]{
+                    sign, activeVms.addAndGet(sign),
+                    sign * vCPU, activeVCPU.addAndGet(sign * vCPU),
+                    sign * ram, activeRam.addAndGet(sign * ram)
+            };
+        }
+
+        private VmMetricsDTO.Usage toUsage() {
+            VmMetricsDTO.Usage usage = new VmMetricsDTO.Usage();
+            usage.setVms(vms.get());
+            usage.setActiveVms(activeVms.get());
+            usage.setActiveVCPU(activeVCPU.get());
+            usage.setActiveRAM(activeRam.get());
+            usage.setActiveDisk(activeDisk.get());
+            return usage;
+        }
+    }
+
+    // values at the beginning of the minute and peaks reached within it, immutable
+    private static class Sample {
+        private final long minute;
+        private final int openingVms;
+        private final long openingVCPU;
+        private final long openingRam;
+        private final int peakVms;
+        private final long peakVCPU;
+        private final long peakRam;
+
+        private Sample(long minute, long[] change) {
+            this(minute, (int) (change[1] - change[0]), change[3] - change[2], change[5] - change[4],
+                    (int) Math.max(change[1], change[1] - change[0]),
+                    Math.max(change[3], change[3] - change[2]),
+                    Math.max(change[5], change[5] - change[4]));
+        }
+
+        private Sample(long minute, int openingVms, long openingVCPU, long openingRam,
+                       int peakVms, long peakVCPU, long peakRam) {
+            this.minute = minute;
+            this.openingVms = openingVms;
+            this.openingVCPU = openingVCPU;
+            this.openingRam = openingRam;
+            this.peakVms = peakVms;
+            this.peakVCPU = peakVCPU;
+            this.peakRam = peakRam;
+        }
+
+        private Sample peak(long[] change) {
+            return new Sample(minute, openingVms, openingVCPU, openingRam,
+                    (int) Math.max(peakVms, change[1]), Math.max(peakVCPU, change[3]), Math.max(peakRam, change[5]));
+        }
+    }
+}
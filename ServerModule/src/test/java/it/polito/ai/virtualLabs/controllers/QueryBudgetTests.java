@@ -0,0 +1,304 @@
+package it.polito.ai.virtualLabs.controllers;
+
+import it.polito.ai.virtualLabs.entities.*;
+import it.polito.ai.virtualLabs.repositories.*;
+import it.polito.ai.virtualLabs.security.JwtTokenProvider;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManagerFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Maximum number of SQL statements every endpoint may run. The same data is seeded twice, a
+ * small course and one with twice as many students, teams, vms and reports, and every endpoint
+ * is measured on both: each is called once to warm up the caches, then the statements of a
+ * second call are counted with the Hibernate statistics. An endpoint whose count grows with the
+ * size of the data (N+1 selects) runs more statements on the large course and fails the build,
+ * whatever its budget. The budgets are the counts measured when they were set: lower them when
+ * an endpoint improves.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class QueryBudgetTests {
+
+    // registered students enrolled in no course, for the write paths
+    private static final String POOL = "s9%05d";
+    private static final int POOL_SIZE = 31;
+
+    @Autowired
+    MockMvc mockMvc;
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+    @Autowired
+    TransactionTemplate transactionTemplate;
+    @Autowired
+    JwtTokenProvider jwtTokenProvider;
+    @Autowired
+    UserRepository userRepository;
+    @Autowired
+    CourseRepository courseRepository;
+    @Autowired
+    TeamRepository teamRepository;
+    @Autowired
+    VmModelRepository vmModelRepository;
+    @Autowired
+    VmRepository vmRepository;
+    @Autowired
+    AssignmentRepository assignmentRepository;
+    @Autowired
+    ReportRepository reportRepository;
+
+    private Statistics statistics;
+    private Seed small;
+    private Seed large;
+
+    static Stream<Arguments> budgets() {
+        return Stream.of(
+                //professor
+                Arguments.of("professor", "/API/courses/{course}/enrolled", 5),
+                Arguments.of("professor", "/API/courses/{course}/notEnrolled", 3),
+                Arguments.of("professor", "/API/courses/{course}/teams", 4),
+                Arguments.of("professor", "/API/courses/{course}/teamedUp", 3),
+                Arguments.of("professor", "/API/courses/{course}/notTeamedUp", 3),
+                Arguments.of("professor", "/API/courses/{course}/professors", 4),
+                Arguments.of("professor", "/API/courses/{course}/vmModel", 5),
+                Arguments.of("professor", "/API/courses/{course}/assignments", 4),
+                Arguments.of("professor", "/API/courses/{course}/teamProposals", 4),
+                Arguments.of("professor", "/API/professors/{professor}/courses", 4),
+                Arguments.of("professor", "/API/teams/{team}/members", 4),
+                Arguments.of("professor", "/API/teams/{team}/vms", 4),
+                Arguments.of("professor", "/API/vms/{vm}/team", 4),
+                Arguments.of("professor", "/API/vms/{vm}/owners", 6),
+                Arguments.of("professor", "/API/vms/vmModels/{vmModel}/vms", 5),
+                Arguments.of("professor", "/API/labs/assignments/{assignment}/reports", 4),
+                Arguments.of("professor", "/API/labs/reports/{report}", 4),
+                //student
+                Arguments.of("student", "/auth/me", 3),
+                Arguments.of("student", "/API/students/{student}/courses", 5),
+                Arguments.of("student", "/API/students/{student}/teams", 5),
+                Arguments.of("student", "/API/students/{student}/teamProposals", 4),
+                Arguments.of("student", "/API/students/{student}/courses/{course}/team", 7),
+                Arguments.of("student", "/API/vms/{vm}", 4),
+                Arguments.of("student", "/API/vms/{vm}/creator", 4),
+                Arguments.of("student", "/API/vms/heartbeat/{vm}", 0),
+                Arguments.of("student", "/API/labs/reports/{report}/versions", 5)
+        );
+    }
+
+    @BeforeAll
+    void seed() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        small = seedCourse(0, 1);
+        large = seedCourse(1, 2);
+        transactionTemplate.execute(status -> {
+            for(int i = 0; i < POOL_SIZE; i++) {
+                Student student = new Student();
+                setUser(student, String.format(POOL, i), "ROLE_STUDENT");
+                userRepository.save(student);
+            }
+            return null;
+        });
+    }
+
+    @ParameterizedTest(name = "{0} GET {1} runs at most {2} statements")
+    @MethodSource("budgets")
+    void endpointStaysWithinBudget(String role, String path, int budget) throws Exception {
+        long smallStatements = countStatements(small, role, path);
+        long largeStatements = countStatements(large, role, path);
+
+        assertTrue(largeStatements <= smallStatements, "GET " + path + " ran " + smallStatements +
+                " statements on the small course and " + largeStatements + " on the large one");
+        assertTrue(largeStatements <= budget, "GET " + path + " ran " + largeStatements + " statements, its budget is " + budget);
+    }
+
+    @Test
+    void enrollManyStaysWithinBudget() throws Exception {
+        int budget = 7;
+        //warm up with a single student, then enroll 10 students in the small course and 20 in the large one
+        perform(enrollMany(small, 0, 1));
+        statistics.clear();
+        perform(enrollMany(small, 1, 11));
+        long smallStatements = statistics.getPrepareStatementCount();
+        statistics.clear();
+        perform(enrollMany(large, 11, 31));
+        long largeStatements = statistics.getPrepareStatementCount();
+
+        assertTrue(largeStatements <= smallStatements, "POST enrollMany ran " + smallStatements +
+                " statements for 10 students and " + largeStatements + " for 20");
+        assertTrue(largeStatements <= budget, "POST enrollMany ran " + largeStatements + " statements, its budget is " + budget);
+    }
+
+    private long countStatements(Seed seed, String role, String path) throws Exception {
+        String url = path
+                .replace("{course}", seed.course)
+                .replace("{professor}", seed.professor)
+                .replace("{student}", seed.student)
+                .replace("{team}", seed.teamId.toString())
+                .replace("{vm}", seed.vmId.toString())
+                .replace("{vmModel}", seed.vmModelId.toString())
+                .replace("{assignment}", seed.assignmentId.toString())
+                .replace("{report}", seed.reportId.toString());
+        String token = role.equals("professor") ? seed.professorToken : seed.studentToken;
+
+        perform(get(url).header("Authorization", "Bearer " + token));
+        statistics.clear();
+        perform(get(url).header("Authorization", "Bearer " + token));
+        return statistics.getPrepareStatementCount();
+    }
+
+    private RequestBuilder enrollMany(Seed seed, int from, int to) {
+        String ids = IntStream.range(from, to)
+                .mapToObj(i -> "\"" + String.format(POOL, i) + "\"")
+                .collect(Collectors.joining(",", "[", "]"));
+        return post("/API/courses/" + seed.course + "/enrollMany")
+                .header("Authorization", "Bearer " + seed.professorToken)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(ids);
+    }
+
+    private void perform(RequestBuilder request) throws Exception {
+        mockMvc.perform(request).andExpect(status().isOk());
+    }
+
+    // a course with 30 students, 3 teams of 3 students, 2 vms in the first team and a report
+    // for every student, all multiplied by scale
+    private Seed seedCourse(int index, int scale) {
+        Seed seed = new Seed();
+        seed.course = "C" + index;
+        seed.professor = String.format("d%06d", index);
+        seed.student = String.format("s%d%05d", index, 0);
+
+        transactionTemplate.execute(status -> {
+            Course course = new Course();
+            course.setName(seed.course);
+            course.setAcronym(seed.course);
+            course.setMinTeamSize(2);
+            course.setMaxTeamSize(4);
+            course.setEnabled(true);
+            courseRepository.save(course);
+
+            Professor professor = new Professor();
+            setUser(professor, seed.professor, "ROLE_PROFESSOR");
+            professor.addCourse(course);
+            userRepository.save(professor);
+
+            List<Student> students = new ArrayList<>();
+            for(int i = 0; i < 30 * scale; i++) {
+                Student student = new Student();
+                setUser(student, String.format("s%d%05d", index, i), "ROLE_STUDENT");
+                course.addStudent(student);
+                students.add(userRepository.save(student));
+            }
+
+            VmModel vmModel = new VmModel();
+            vmModel.setName("model");
+            vmModel.setOs("ubuntu");
+            vmModel.setMaxVCPU(16);
+            vmModel.setMaxRAM(32);
+            vmModel.setMaxDisk(1000);
+            vmModel.setMaxTotVm(10);
+            vmModel.setMaxActiveVm(5);
+            vmModel.setCourse(course);
+            vmModel.setProfessor(professor);
+            seed.vmModelId = vmModelRepository.save(vmModel).getId();
+
+            for(int t = 0; t < 3 * scale; t++) {
+                Team team = new Team();
+                team.setName("team" + t);
+                team.setCourse(course);
+                for(int i = 0; i < 3; i++)
+                    team.addMember(students.get(t * 3 + i));
+                teamRepository.save(team);
+                if(t == 0)
+                    seed.teamId = team.getId();
+            }
+
+            Team team = teamRepository.getOne(seed.teamId);
+            for(int v = 0; v < 2 * scale; v++) {
+                Vm vm = new Vm();
+                vm.setVCPU(2);
+                vm.setRAM(4);
+                vm.setDisk(50);
+                vm.setContent("ubuntu_v0");
+                vm.setTeam(team);
+                vm.setVmModel(vmModel);
+                vm.setCreator(students.get(0));
+                team.getStudents().forEach(vm::addOwner);
+                vmRepository.save(vm);
+                if(v == 0)
+                    seed.vmId = vm.getId();
+            }
+
+            Assignment assignment = new Assignment();
+            assignment.setName("assignment");
+            assignment.setContent("content");
+            assignment.setReleaseDate(LocalDateTime.now().minusDays(1));
+            assignment.setExpiryDate(LocalDateTime.now().plusDays(7));
+            assignment.setCourse(course);
+            assignment.setProfessor(professor);
+            seed.assignmentId = assignmentRepository.save(assignment).getId();
+            for(Student student : students) {
+                Report report = new Report();
+                report.setAssignment(assignment);
+                report.setOwner(student);
+                reportRepository.save(report);
+                if(student.getId().equals(seed.student))
+                    seed.reportId = report.getId();
+            }
+            return null;
+        });
+
+        seed.professorToken = jwtTokenProvider.createToken(userRepository.getProfessorById(seed.professor));
+        seed.studentToken = jwtTokenProvider.createToken(userRepository.getStudentById(seed.student));
+        return seed;
+    }
+
+    private static void setUser(User user, String id, String role) {
+        user.setId(id);
+        user.setUsername(id + (role.equals("ROLE_STUDENT") ? "@studenti.polito.it" : "@polito.it"));
+        user.setName("Name");
+        user.setSurname("Surname");
+        user.setPassword("password");
+        user.setRegistered(true);
+        user.setRoles(new ArrayList<>(Collections.singletonList(role)));
+    }
+
+    private static class Seed {
+        private String course;
+        private String professor;
+        private String student;
+        private String professorToken;
+        private String studentToken;
+        private Long teamId;
+        private Long vmId;
+        private Long vmModelId;
+        private Long assignmentId;
+        private Long reportId;
+    }
+}
@@ -0,0 +1,152 @@
+package it.polito.ai.virtualLabs.entities;
+
+import lombok.Data;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Membership checks on a course with 1,000 students, looking for the last one through an
+ * instance loaded separately (equal, not the same object). The previous entities compared every
+ * field with Lombok @Data, including the lists of their associations: they are reproduced by
+ * the nested Legacy classes, with which the course of the student is not even found, as its
+ * copy has a different list of loaded students. The current entities only compare their ids.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=it.polito.ai.virtualLabs.entities.EntityMembershipBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityMembershipBenchmark {
+
+    private static final int STUDENTS = 1000;
+
+    private LegacyCourse legacyCourse;
+    private LegacyStudent legacyStudent;
+    private LegacyCourse legacyCourseCopy;
+    private LegacyStudent legacyStudentCopy;
+
+    private Course course;
+    private Student student;
+    private Course courseCopy;
+    private Student studentCopy;
+
+    @Setup
+    public void setup() {
+        legacyCourse = legacyCourse();
+        legacyCourseCopy = legacyCourse();
+        legacyStudent = legacyCourse.getStudents().get(STUDENTS - 1);
+        legacyStudent.getCourses().add(legacyCourse);
+        legacyStudentCopy = legacyCourseCopy.getStudents().get(STUDENTS - 1);
+
+        course = course();
+        courseCopy = course();
+        student = lastStudent(course);
+        student.getCourses().add(course);
+        studentCopy = lastStudent(courseCopy);
+    }
+
+    @Benchmark
+    public boolean previousStudentInCourse() {
+        return legacyCourse.getStudents().contains(legacyStudentCopy);
+    }
+
+    @Benchmark
+    public boolean previousCourseOfStudent() {
+        return legacyStudent.getCourses().contains(legacyCourseCopy);
+    }
+
+    @Benchmark
+    public boolean currentStudentInCourse() {
+        return course.getStudents().contains(studentCopy);
+    }
+
+    @Benchmark
+    public boolean currentCourseOfStudent() {
+        return student.getCourses().contains(courseCopy);
+    }
+
+    private static LegacyCourse legacyCourse() {
+        LegacyCourse c = new LegacyCourse();
+        c.setName("Applicazioni Internet");
+        c.setAcronym("AI");
+        for(int i = 0; i < STUDENTS; i++) {
+            LegacyStudent s = new LegacyStudent();
+            s.setId(studentId(i));
+            s.setUsername(studentId(i) + "@studenti.polito.it");
+            s.setName("Name");
+            s.setSurname("Surname");
+            s.setRoles(Collections.singletonList("ROLE_STUDENT"));
+            c.getStudents().add(s);
+        }
+        return c;
+    }
+
+    private static Course course() {
+        Course c = new Course();
+        c.setName("Applicazioni Internet");
+        c.setAcronym("AI");
+        for(int i = 0; i < STUDENTS; i++) {
+            Student s = new Student();
+            s.setId(studentId(i));
+            s.setUsername(studentId(i) + "@studenti.polito.it");
+            s.setName("Name");
+            s.setSurname("Surname");
+            s.setRoles(Collections.singletonList("ROLE_STUDENT"));
+            c.getStudents().add(s);
+        }
+        return c;
+    }
+
+    private static Student lastStudent(Course c) {
+        return c.getStudents()
+                .stream()
+                .filter(s -> s.getId().equals(studentId(STUDENTS - 1)))
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+    }
+
+    // the same id for the last student of every course, different ids for the others
+    private static String studentId(int i) {
+        return i == STUDENTS - 1 ? "s999999" : String.format("s%06d", i);
+    }
+
+    @Data
+    public static class LegacyStudent {
+        private String id;
+        private String username;
+        private String password;
+        private String name;
+        private String surname;
+        private List<String> roles = new ArrayList<>();
+        private boolean registered;
+        // only the courses of the student looked up are loaded, as the other lists stay lazy
+        private List<LegacyCourse> courses = new ArrayList<>();
+    }
+
+    @Data
+    public static class LegacyCourse {
+        private String name;
+        private String acronym;
+        private int minTeamSize;
+        private int maxTeamSize;
+        private boolean enabled;
+        private List<LegacyStudent> students = new ArrayList<>();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(EntityMembershipBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
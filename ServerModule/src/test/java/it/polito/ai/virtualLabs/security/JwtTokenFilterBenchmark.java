@@ -0,0 +1,73 @@
+package it.polito.ai.virtualLabs.security;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.Jwts;
+import it.polito.ai.virtualLabs.entities.Student;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.core.Authentication;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token handling of the authentication filter: the previous path verified and parsed the token
+ * twice (validateToken, then getUsername before loading the user), the current one parses it
+ * once and skips the verification for tokens seen before. The user load the previous path did
+ * on top of that is not measured.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=it.polito.ai.virtualLabs.security.JwtTokenFilterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtTokenFilterBenchmark {
+
+    private JwtTokenProvider provider;
+    private String signingKey;
+    private String token;
+
+    @Setup
+    public void setup() {
+        provider = new JwtTokenProvider();
+        ReflectionTestUtils.setField(provider, "principalCache", new JwtPrincipalCache());
+        ReflectionTestUtils.setField(provider, "verifiedTokenCache", new VerifiedTokenCache());
+        provider.init();
+        signingKey = Base64.getEncoder().encodeToString("secret".getBytes());
+
+        Student student = new Student();
+        student.setId("s000001");
+        student.setUsername("s000001@studenti.polito.it");
+        student.setRoles(Collections.singletonList("ROLE_STUDENT"));
+        token = provider.createToken(student);
+    }
+
+    @Benchmark
+    public String previousPath() {
+        Jws<Claims> claims = Jwts.parser().setSigningKey(signingKey).parseClaimsJws(token);
+        if(claims.getBody().getExpiration().before(new Date()))
+            return null;
+        return Jwts.parser().setSigningKey(signingKey).parseClaimsJws(token).getBody().getSubject();
+    }
+
+    @Benchmark
+    public Authentication currentPath() {
+        return provider.getAuthentication(provider.parseToken(token));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JwtTokenFilterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,118 @@
+package it.polito.ai.virtualLabs.services.mail;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import it.polito.ai.virtualLabs.entities.EmailOutbox;
+import it.polito.ai.virtualLabs.repositories.EmailOutboxRepository;
+import it.polito.ai.virtualLabs.services.NotificationService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.mail.internet.MimeMessage;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Delivers the outbox to an in-process SMTP server listening on the test mail port.
+ */
+@SpringBootTest
+class EmailDispatcherTests {
+
+    @Autowired
+    NotificationService notificationService;
+    @Autowired
+    EmailDispatcher emailDispatcher;
+    @Autowired
+    EmailOutboxRepository emailOutboxRepository;
+
+    private GreenMail greenMail;
+
+    @BeforeEach
+    void startServer() {
+        emailOutboxRepository.deleteAll();
+        greenMail = new GreenMail(ServerSetupTest.SMTP);
+        greenMail.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        greenMail.stop();
+    }
+
+    @Test
+    void sendsQueuedEmailsInBatches() throws Exception {
+        for(int i = 0; i < 3; i++)
+            notificationService.sendMessage("s00000" + i + "@studenti.polito.it", "Subject " + i, "Body " + i);
+
+        emailDispatcher.dispatch();
+
+        MimeMessage[] received = greenMail.getReceivedMessages();
+        assertEquals(3, received.length);
+        assertEquals("Subject 0", received[0].getSubject());
+        for(EmailOutbox email : emailOutboxRepository.findAll()) {
+            assertEquals(EmailOutbox.EmailStatus.SENT, email.getStatus());
+            assertEquals(1, email.getAttempts());
+            assertNotNull(email.getSentAt());
+        }
+    }
+
+    @Test
+    void retriesWithBackoffWhenTheServerIsDown() throws Exception {
+        notificationService.sendMessage("s000000@studenti.polito.it", "Subject", "Body");
+        greenMail.stop();
+
+        LocalDateTime now = LocalDateTime.now();
+        emailDispatcher.dispatch(now);
+
+        EmailOutbox email = emailOutboxRepository.findAll().get(0);
+        assertEquals(EmailOutbox.EmailStatus.PENDING, email.getStatus());
+        assertEquals(1, email.getAttempts());
+        assertNotNull(email.getLastError());
+        assertTrue(email.getNextAttemptAt().isAfter(now));
+
+        // not due yet
+        greenMail = new GreenMail(ServerSetupTest.SMTP);
+        greenMail.start();
+        emailDispatcher.dispatch(now);
+        assertEquals(0, greenMail.getReceivedMessages().length);
+
+        emailDispatcher.dispatch(email.getNextAttemptAt());
+        assertEquals(1, greenMail.getReceivedMessages().length);
+        email = emailOutboxRepository.findById(email.getId()).get();
+        assertEquals(EmailOutbox.EmailStatus.SENT, email.getStatus());
+        assertEquals(2, email.getAttempts());
+        assertNull(email.getLastError());
+    }
+
+    @Test
+    void mergesTheDigestEmailsOfARecipient() throws Exception {
+        // the database rounds the stored due times, keep them comparable with now
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        for(int i = 0; i < 3; i++)
+            queueDigest("s000000@studenti.polito.it", "Invitation " + i, now.plusMinutes(i));
+        queueDigest("s000001@studenti.polito.it", "Invitation 0", now);
+
+        // the window of the first invitation is over, the later ones go along with it
+        emailDispatcher.dispatch(now);
+
+        MimeMessage[] received = greenMail.getReceivedMessages();
+        assertEquals(2, received.length);
+        MimeMessage digest = received[0].getSubject().endsWith("(3)") ? received[0] : received[1];
+        String body = String.valueOf(digest.getContent());
+        for(int i = 0; i < 3; i++)
+            assertTrue(body.contains("Invitation " + i));
+        assertTrue(emailOutboxRepository.findAll().stream().allMatch(e -> e.getStatus() == EmailOutbox.EmailStatus.SENT));
+    }
+
+    private void queueDigest(String recipient, String subject, LocalDateTime due) {
+        EmailOutbox email = new EmailOutbox(recipient, subject, "Body");
+        email.setDigest(true);
+        email.setNextAttemptAt(due);
+        emailOutboxRepository.save(email);
+    }
+}
@@ -0,0 +1,147 @@
+package it.polito.ai.virtualLabs.services.vm;
+
+import it.polito.ai.virtualLabs.entities.VmModel;
+import it.polito.ai.virtualLabs.repositories.VmRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs reservations of uncommitted transactions against evictions of the same team. Every
+ * transaction is simulated on its own thread with the synchronizations of the transaction manager.
+ */
+class TeamResourceLedgerTests {
+
+    private static final Long TEAM_ID = 1L;
+    private static final int MAX_VMS = 4;
+
+    private TeamResourceLedger ledger;
+    private VmModel vmModel;
+
+    @BeforeEach
+    void setUp() {
+        VmRepository vmRepository = mock(VmRepository.class);
+        //no vm of the team is ever committed
+        when(vmRepository.findAllByTeamId(anyLong())).thenReturn(Collections.emptyList());
+        ledger = new TeamResourceLedger();
+        ledger.vmRepository = vmRepository;
+
+        vmModel = new VmModel();
+        vmModel.setMaxTotVm(MAX_VMS);
+        vmModel.setMaxActiveVm(MAX_VMS);
+        vmModel.setMaxVCPU(100);
+        vmModel.setMaxRAM(100);
+        vmModel.setMaxDisk(100);
+    }
+
+    @Test
+    void evictionKeepsUncommittedReservations() throws Exception {
+        List<Transaction> transactions = new ArrayList<>();
+        for(int i = 0; i < MAX_VMS; i++) {
+            Transaction tx = new Transaction();
+            assertTrue(tx.run(() -> ledger.tryAddVm(TEAM_ID, vmModel, 1, 1, 1)));
+            transactions.add(tx);
+        }
+
+        ledger.evictTeam(TEAM_ID);
+        //the uncommitted reservations still fill the team
+        assertFalse(ledger.tryAddVm(TEAM_ID, vmModel, 1, 1, 1));
+        transactions.get(0).complete(false);
+        assertTrue(ledger.tryAddVm(TEAM_ID, vmModel, 1, 1, 1));
+        for(Transaction tx : transactions.subList(1, MAX_VMS))
+            tx.complete(false);
+    }
+
+    @Test
+    void staleCompensationsAreIgnored() throws Exception {
+        Transaction reserving = new Transaction();
+        assertTrue(reserving.run(() -> ledger.tryAddVm(TEAM_ID, vmModel, 1, 1, 1)));
+        ledger.evictTeam(TEAM_ID);
+        assertEquals(0, ledger.activeVms(TEAM_ID));
+        reserving.complete(false);
+
+        //the rollback above must not free a slot in a usage reloaded before it
+        int added = 0;
+        while(added <= MAX_VMS && ledger.tryAddVm(TEAM_ID, vmModel, 1, 1, 1))
+            added++;
+        assertEquals(MAX_VMS, added);
+    }
+
+    @Test
+    void concurrentReservationsNeverExceedTheLimit() throws Exception {
+        int threads = 16, rounds = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        try {
+            for(int round = 0; round < rounds; round++) {
+                ledger.evictTeam(TEAM_ID);
+                CyclicBarrier start = new CyclicBarrier(threads + 1);
+                AtomicInteger admitted = new AtomicInteger();
+                List<Future<Transaction>> reservations = new ArrayList<>();
+                for(int i = 0; i < threads; i++)
+                    reservations.add(executor.submit(() -> {
+                        Transaction tx = new Transaction();
+                        start.await();
+                        if(tx.run(() -> ledger.tryAddVm(TEAM_ID, vmModel, 1, 1, 1)))
+                            admitted.incrementAndGet();
+                        return tx;
+                    }));
+                Future<?> evictions = executor.submit(() -> {
+                    start.await();
+                    for(int i = 0; i < threads; i++)
+                        ledger.evictTeam(TEAM_ID);
+                    return null;
+                });
+
+                evictions.get(10, TimeUnit.SECONDS);
+                List<Transaction> transactions = new ArrayList<>();
+                for(Future<Transaction> reservation : reservations)
+                    transactions.add(reservation.get(10, TimeUnit.SECONDS));
+                assertTrue(admitted.get() <= MAX_VMS, "admitted " + admitted.get() + " vms");
+                for(Transaction tx : transactions)
+                    tx.complete(false);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // a transaction left open on a thread of its own until it is completed
+    private static class Transaction {
+        private final ExecutorService thread = Executors.newSingleThreadExecutor();
+
+        private Transaction() throws Exception {
+            thread.submit(TransactionSynchronizationManager::initSynchronization).get();
+        }
+
+        private <T> T run(Supplier<T> action) throws Exception {
+            return thread.submit(action::get).get();
+        }
+
+        private void complete(boolean commit) throws Exception {
+            thread.submit(() -> {
+                List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+                TransactionSynchronizationManager.clearSynchronization();
+                for(TransactionSynchronization synchronization : synchronizations) {
+                    if(commit)
+                        synchronization.afterCommit();
+                    synchronization.afterCompletion(commit ? TransactionSynchronization.STATUS_COMMITTED :
+                            TransactionSynchronization.STATUS_ROLLED_BACK);
+                }
+            }).get();
+            thread.shutdown();
+        }
+    }
+}